@@ -0,0 +1,224 @@
+package com.opower.connectionpool;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.BatchUpdateException;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Coalesces repeated single-row writes made through one borrow of a connection into JDBC batches.
+ *
+ * Only used once the borrower opts in with OConnection.enableBatchCoalescing. executeUpdate() on a statement from
+ * prepareStatement(sql) then does not go to the database right away when the connection is in a transaction (autoCommit
+ * off). Instead its parameters are added to a batch for that SQL and 1 is returned as a provisional update count. The batch is executed once it
+ * holds maxBatchSize rows, when an update finds it older than maxDelay, and before anything else runs on the
+ * connection: another SQL, any other statement execution, commit, a savepoint or switching autoCommit on. A rollback
+ * discards it. maxDelay is only checked as rows are added; there is no timer, so a batch that gets no further rows waits
+ * for the next statement, commit or release. Only consecutive executions of the same SQL share a batch, so writes reach the database in the order
+ * they were made.
+ *
+ * When the batch runs, every row must report an update count of 1 (or SUCCESS_NO_INFO), else a BatchUpdateException
+ * carrying the real counts is thrown. Failures surface on the call that caused the flush, so the exception names the
+ * coalesced SQL and which of its rows failed, and the transaction should then be rolled back as for any failed
+ * statement. Hence only enable this for single-row INSERTs and the like.
+ *
+ * Only used by the thread that borrowed the connection, so it is not synchronized.
+ *
+ * @author VinayG
+ */
+final class BatchCoalescer {
+
+	private final Connection connection;
+	private final PooledConnection pooledConnection;
+	private final int maxBatchSize;
+	private final long maxDelayNanos;
+
+	/* One physical statement per coalesced SQL, reused for each of its batches during the borrow. */
+	private final Map<String, PreparedStatement> batchStatements = new HashMap<String, PreparedStatement>();
+
+	/* The SQL of the pending batch, its statement, the rows added and when the first one was added. */
+	private String pendingSql;
+	private PreparedStatement pendingStatement;
+	private int pendingRows;
+	private long firstPendingNanos;
+
+	BatchCoalescer(PooledConnection pooledConnection, int maxBatchSize, long maxDelayNanos){
+		this.connection = pooledConnection.connection;
+		this.pooledConnection = pooledConnection;
+		this.maxBatchSize = maxBatchSize;
+		this.maxDelayNanos = maxDelayNanos;
+	}
+
+	/* Wraps a statement so that executing it first flushes the pending batch. If sql is not null the statement was
+	 * created by prepareStatement(sql) and its executeUpdate() calls are coalesced. */
+	@SuppressWarnings("unchecked")
+	<T extends Statement> T wrap(T statement, String sql) {
+		Class<?> type = statement instanceof CallableStatement ? CallableStatement.class
+				: statement instanceof PreparedStatement ? PreparedStatement.class : Statement.class;
+		return (T) Proxy.newProxyInstance(BatchCoalescer.class.getClassLoader(), new Class<?>[]{type},
+				new CoalescingStatementHandler(statement, sql));
+	}
+
+	/* Adds the row to the batch for the SQL, flushing whatever else is pending first. */
+	private int addToBatch(String sql, Map<Integer, Object[]> parameters) throws SQLException {
+		if(pendingSql != null && !pendingSql.equals(sql)){
+			flush();
+		}
+		if(pendingSql == null){
+			PreparedStatement batchStatement = batchStatements.get(sql);
+			if(batchStatement == null){
+				batchStatement = connection.prepareStatement(sql);
+				pooledConnection.trackStatement(batchStatement);
+				batchStatements.put(sql, batchStatement);
+			}
+			pendingSql = sql;
+			pendingStatement = batchStatement;
+			firstPendingNanos = System.nanoTime();
+		}
+		pendingStatement.clearParameters();
+		for(Object[] setter : parameters.values()){
+			invoke(pendingStatement, (Method) setter[0], (Object[]) setter[1]);
+		}
+		pendingStatement.addBatch();
+		pendingRows++;
+		if(pendingRows >= maxBatchSize || System.nanoTime() - firstPendingNanos >= maxDelayNanos){
+			flush();
+		}
+		return 1;
+	}
+
+	/* Returns true if rows are waiting in a batch that has not been executed yet. */
+	boolean hasPendingRows() {
+		return pendingRows > 0;
+	}
+
+	/* Executes the pending batch, if any.
+	 * Throws BatchUpdateException if a row did not update exactly one row. */
+	void flush() throws SQLException {
+		if(pendingRows == 0){
+			return;
+		}
+		PreparedStatement batchStatement = pendingStatement;
+		String sql = pendingSql;
+		clearPending();
+		pooledConnection.applyDeadline(batchStatement);
+		int[] updateCounts;
+		try {
+			updateCounts = batchStatement.executeBatch();
+		} catch (BatchUpdateException e) {
+			throw new BatchUpdateException("Coalesced update " + (failedRow(e.getUpdateCounts()) + 1) + " of " + sql
+					+ " failed: " + e.getMessage(), e.getSQLState(), e.getErrorCode(), e.getUpdateCounts(), e);
+		} catch (SQLException e) {
+			throw new BatchUpdateException("Coalesced updates of " + sql + " failed: " + e.getMessage(), e.getSQLState(),
+					e.getErrorCode(), new int[0], e);
+		}
+		for(int i = 0; i < updateCounts.length; i++){
+			if(updateCounts[i] != 1 && updateCounts[i] != Statement.SUCCESS_NO_INFO){
+				throw new BatchUpdateException("Coalesced update " + (i + 1) + " of " + updateCounts.length + " of " + sql
+						+ " updated " + updateCounts[i] + " rows instead of 1.", updateCounts);
+			}
+		}
+	}
+
+	/* Returns the index of the row the driver's batch failed at: the first one marked EXECUTE_FAILED, or the one after the
+	 * last count reported by a driver that stops at the first failure. */
+	private static int failedRow(int[] updateCounts) {
+		if(updateCounts == null){
+			return 0;
+		}
+		for(int i = 0; i < updateCounts.length; i++){
+			if(updateCounts[i] == Statement.EXECUTE_FAILED){
+				return i;
+			}
+		}
+		return updateCounts.length;
+	}
+
+	/* Drops the pending batch without executing it, as its rows are being rolled back anyway. */
+	void discard() throws SQLException {
+		if(pendingRows == 0){
+			return;
+		}
+		PreparedStatement batchStatement = pendingStatement;
+		clearPending();
+		batchStatement.clearBatch();
+	}
+
+	/* Closes the batch statements. Anything still pending is discarded. */
+	void close() {
+		clearPending();
+		Iterator<PreparedStatement> statements = batchStatements.values().iterator();
+		while(statements.hasNext()){
+			try {
+				statements.next().close();
+			} catch (SQLException e) {
+				//The connection is going back to the pool or being closed anyway.
+			}
+			statements.remove();
+		}
+	}
+
+	private void clearPending() {
+		pendingSql = null;
+		pendingStatement = null;
+		pendingRows = 0;
+	}
+
+	private static Object invoke(Statement statement, Method method, Object[] args) throws SQLException {
+		try {
+			return method.invoke(statement, args);
+		} catch (InvocationTargetException e) {
+			if(e.getCause() instanceof SQLException){
+				throw (SQLException) e.getCause();
+			} else if(e.getCause() instanceof RuntimeException){
+				throw (RuntimeException) e.getCause();
+			}
+			throw new SQLException(e.getCause());
+		} catch (IllegalAccessException e) {
+			throw new SQLException(e);
+		}
+	}
+
+	/* Forwards to the physical statement, flushing the pending batch before anything is executed and coalescing the
+	 * executeUpdate() calls of statements created by prepareStatement(sql). */
+	private final class CoalescingStatementHandler implements InvocationHandler {
+		private final Statement statement;
+		private final String sql;
+
+		/* The last setter invoked for each parameter index, as {Method, arguments}, to be replayed on the batch. */
+		private final Map<Integer, Object[]> parameters = new TreeMap<Integer, Object[]>();
+
+		CoalescingStatementHandler(Statement statement, String sql){
+			this.statement = statement;
+			this.sql = sql;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if(sql != null){
+				if(name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer){
+					parameters.put((Integer) args[0], new Object[]{method, args});
+				} else if(name.equals("clearParameters")){
+					parameters.clear();
+				} else if(name.equals("executeUpdate") && args == null && !connection.getAutoCommit()){
+					return addToBatch(sql, parameters);
+				}
+			}
+			if(name.startsWith("execute")){
+				flush();
+			}
+			return BatchCoalescer.invoke(statement, method, args);
+		}
+	}
+}
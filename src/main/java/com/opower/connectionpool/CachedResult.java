@@ -0,0 +1,123 @@
+package com.opower.connectionpool;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * The fully read rows of a query, as served from the pool's result cache (see OConnectionPoolImpl.queryCached).
+ *
+ * The values are kept in a single row-major array rather than an object per row, and the column labels are shared
+ * by every row. Rows and columns are numbered from 1 as in java.sql.ResultSet. Instances are immutable and shared
+ * between every caller the cache serves them to, hence mutable values such as byte arrays must not be modified.
+ * 
+ * @author VinayG
+ */
+public final class CachedResult {
+
+	/* Rough JVM overheads used to estimate the memory held by the cache. */
+	private static final int OBJECT_OVERHEAD = 16;
+	private static final int REFERENCE_SIZE = 8;
+
+	private final String[] columnLabels;
+	private final Object[] values;
+	private final int rowCount;
+	private final long estimatedBytes;
+
+	private CachedResult(String[] columnLabels, Object[] values, int rowCount){
+		this.columnLabels = columnLabels;
+		this.values = values;
+		this.rowCount = rowCount;
+		this.estimatedBytes = estimateBytes();
+	}
+
+	/* Reads every remaining row of the result set. Does not close it. */
+	static CachedResult materialize(ResultSet resultSet) throws SQLException {
+		ResultSetMetaData metaData = resultSet.getMetaData();
+		int columnCount = metaData.getColumnCount();
+		String[] columnLabels = new String[columnCount];
+		for(int i = 0; i < columnCount; i++){
+			columnLabels[i] = metaData.getColumnLabel(i + 1);
+		}
+		Object[] values = new Object[columnCount * 8];
+		int rowCount = 0;
+		while(resultSet.next()){
+			if((rowCount + 1) * columnCount > values.length){
+				Object[] grown = new Object[values.length * 2];
+				System.arraycopy(values, 0, grown, 0, values.length);
+				values = grown;
+			}
+			for(int i = 0; i < columnCount; i++){
+				values[rowCount * columnCount + i] = resultSet.getObject(i + 1);
+			}
+			rowCount++;
+		}
+		if(values.length != rowCount * columnCount){
+			Object[] trimmed = new Object[rowCount * columnCount];
+			System.arraycopy(values, 0, trimmed, 0, trimmed.length);
+			values = trimmed;
+		}
+		return new CachedResult(columnLabels, values, rowCount);
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	public int getColumnCount() {
+		return columnLabels.length;
+	}
+
+	public String getColumnLabel(int column) {
+		return columnLabels[column - 1];
+	}
+
+	/* Returns the 1 based index of the column with the given label, ignoring case as ResultSet.findColumn does.
+	 * Throws IllegalArgumentException if there is no such column. */
+	public int findColumn(String columnLabel) {
+		for(int i = 0; i < columnLabels.length; i++){
+			if(columnLabels[i].equalsIgnoreCase(columnLabel)){
+				return i + 1;
+			}
+		}
+		throw new IllegalArgumentException("No column labelled " + columnLabel + ".");
+	}
+
+	public Object getObject(int row, int column) {
+		if(row < 1 || row > rowCount || column < 1 || column > columnLabels.length){
+			throw new IndexOutOfBoundsException("No value at row " + row + ", column " + column + ".");
+		}
+		return values[(row - 1) * columnLabels.length + column - 1];
+	}
+
+	public Object getObject(int row, String columnLabel) {
+		return getObject(row, findColumn(columnLabel));
+	}
+
+	/* Approximate memory held by the rows, used to bound the cache. */
+	long getEstimatedBytes() {
+		return estimatedBytes;
+	}
+
+	private long estimateBytes() {
+		long bytes = OBJECT_OVERHEAD * 3 + (long) REFERENCE_SIZE * (columnLabels.length + values.length);
+		for(int i = 0; i < values.length; i++){
+			bytes += estimateBytes(values[i]);
+		}
+		return bytes;
+	}
+
+	private static long estimateBytes(Object value) {
+		if(value == null){
+			return 0;
+		} else if(value instanceof String){
+			return OBJECT_OVERHEAD * 2 + 2L * ((String) value).length();
+		} else if(value instanceof byte[]){
+			return OBJECT_OVERHEAD + ((byte[]) value).length;
+		} else if(value instanceof BigDecimal){
+			return OBJECT_OVERHEAD * 3 + ((BigDecimal) value).precision() / 2;
+		}
+		return OBJECT_OVERHEAD * 2;
+	}
+}
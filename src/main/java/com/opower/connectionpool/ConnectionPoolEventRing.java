@@ -0,0 +1,225 @@
+package com.opower.connectionpool;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Hands the pool's events to the ConnectionPoolListeners on a dedicated dispatcher thread, so that publishing costs
+ * the pool's threads a few field writes and no allocation.
+ *
+ * The events live in a ring of preallocated slots, one array per field. A publisher claims the next sequence with a
+ * CAS, fills in the slot it maps to and then marks the slot as published under that sequence; the dispatcher consumes
+ * the sequences in order and moves its position on once every listener has seen the event, which frees the slot.
+ * A publisher that finds every slot in use either drops its event (counting it) or waits for the dispatcher.
+ *
+ * Nothing is published, and no dispatcher thread exists, until a listener is added.
+ *
+ * @author VinayG
+ */
+final class ConnectionPoolEventRing {
+
+	static final int BORROWED = 0;
+	static final int RELEASED = 1;
+	static final int CREATED = 2;
+	static final int DESTROYED = 3;
+	static final int ABANDONED = 4;
+
+	/* How long the dispatcher sleeps when there is nothing to dispatch, unless woken by a publisher. */
+	private static final long IDLE_PARK_IN_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	/* How long a publisher waiting for room sleeps between checks. */
+	private static final long FULL_PARK_IN_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private final int capacity;
+	private final int mask;
+
+	/* The slots, one array per event field. Only written by the publisher that claimed the slot. */
+	private final int[] types;
+	private final long[] nanoTimes;
+	private final long[] connectionIds;
+	private final long[] durations;
+	private final boolean[] flags;
+	private final String[] reasons;
+
+	/* The sequence each slot was last published under. A slot is ready once it holds the sequence being consumed. */
+	private final AtomicLongArray publishedSequences;
+
+	/* The next sequence a publisher will claim. */
+	private final AtomicLong nextSequence = new AtomicLong();
+
+	/* The next sequence the dispatcher will consume. Every earlier slot is free. */
+	private volatile long consumedSequence;
+
+	private final LongAdder droppedEvents = new LongAdder();
+
+	private final CopyOnWriteArrayList<ConnectionPoolListener> listeners = new CopyOnWriteArrayList<ConnectionPoolListener>();
+
+	/* Set once a listener has been added; until then nothing is published. */
+	private volatile boolean active;
+
+	/* Set while the dispatcher is about to sleep, so publishers know to wake it. */
+	private volatile boolean dispatcherParked;
+
+	private volatile boolean stopped;
+
+	/* Started when the first listener is added. Guarded by this. */
+	private Thread dispatcher;
+
+	private Logger log = Logger.getLogger(ConnectionPoolEventRing.class.getName());
+
+	/* The capacity is rounded up to a power of two. */
+	ConnectionPoolEventRing(int capacity){
+		int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		this.capacity = size;
+		this.mask = size - 1;
+		this.types = new int[size];
+		this.nanoTimes = new long[size];
+		this.connectionIds = new long[size];
+		this.durations = new long[size];
+		this.flags = new boolean[size];
+		this.reasons = new String[size];
+		this.publishedSequences = new AtomicLongArray(size);
+		for(int i = 0; i < size; i++){
+			publishedSequences.set(i, -1);
+		}
+	}
+
+	int getCapacity() {
+		return capacity;
+	}
+
+	/* Adds a listener, starting the dispatcher if this is the first one. */
+	synchronized void addListener(ConnectionPoolListener listener) {
+		if(stopped){
+			throw new IllegalStateException("The pool has been shut down.");
+		}
+		listeners.add(listener);
+		active = true;
+		if(dispatcher == null){
+			dispatcher = new Thread(new Runnable() {
+				public void run() {
+					dispatch();
+				}
+			}, "OConn-event-dispatcher");
+			dispatcher.setDaemon(true);
+			dispatcher.start();
+		}
+	}
+
+	void removeListener(ConnectionPoolListener listener) {
+		listeners.remove(listener);
+	}
+
+	/* Number of events dropped because the ring was full. */
+	long getDroppedEvents() {
+		return droppedEvents.sum();
+	}
+
+	/* Publishes an event, or does nothing if there are no listeners. If the ring is full the event is dropped, or when
+	 * blockWhenFull is set the caller waits for the dispatcher to make room. */
+	void publish(int type, long connectionId, long duration, boolean flag, String reason, boolean blockWhenFull) {
+		if(!active){
+			return;
+		}
+		long sequence;
+		while(true){
+			sequence = nextSequence.get();
+			if(sequence - consumedSequence >= capacity){
+				if(!blockWhenFull || stopped){
+					droppedEvents.increment();
+					return;
+				}
+				wakeDispatcher();
+				LockSupport.parkNanos(FULL_PARK_IN_NANOS);
+			} else if(nextSequence.compareAndSet(sequence, sequence + 1)){
+				break;
+			}
+		}
+		int index = (int) sequence & mask;
+		types[index] = type;
+		nanoTimes[index] = System.nanoTime();
+		connectionIds[index] = connectionId;
+		durations[index] = duration;
+		flags[index] = flag;
+		reasons[index] = reason;
+		publishedSequences.set(index, sequence);
+		wakeDispatcher();
+	}
+
+	private void wakeDispatcher() {
+		if(dispatcherParked){
+			LockSupport.unpark(dispatcher);
+		}
+	}
+
+	/* The dispatcher's loop: consumes the events in sequence order until stopped and drained. */
+	private void dispatch() {
+		long sequence = consumedSequence;
+		while(true){
+			int index = (int) sequence & mask;
+			if(publishedSequences.get(index) == sequence){
+				deliver(index);
+				sequence++;
+				consumedSequence = sequence;
+			} else if(stopped && nextSequence.get() == sequence){
+				return;
+			} else {
+				dispatcherParked = true;
+				if(publishedSequences.get(index) != sequence && !stopped){
+					LockSupport.parkNanos(this, IDLE_PARK_IN_NANOS);
+				}
+				dispatcherParked = false;
+			}
+		}
+	}
+
+	/* Hands the event in the slot to every listener. */
+	private void deliver(int index) {
+		for(ConnectionPoolListener listener : listeners){
+			try {
+				switch(types[index]){
+				case BORROWED:
+					listener.connectionBorrowed(nanoTimes[index], connectionIds[index], durations[index]);
+					break;
+				case RELEASED:
+					listener.connectionReleased(nanoTimes[index], connectionIds[index], durations[index], flags[index]);
+					break;
+				case CREATED:
+					listener.connectionCreated(nanoTimes[index], connectionIds[index]);
+					break;
+				case DESTROYED:
+					listener.connectionDestroyed(nanoTimes[index], connectionIds[index], reasons[index]);
+					break;
+				default:
+					listener.connectionAbandoned(nanoTimes[index], connectionIds[index], durations[index]);
+				}
+			} catch (RuntimeException e) {
+				log.error("Pool listener " + listener + " failed. " + e.getMessage());
+			}
+		}
+		reasons[index] = null;
+	}
+
+	/* Stops accepting events and waits up to the timeout for the dispatcher to deliver the ones already published.
+	 * Returns true if it finished in time (or was never started). */
+	boolean stop(long timeout, TimeUnit unit) throws InterruptedException {
+		Thread dispatcherToJoin;
+		synchronized(this){
+			stopped = true;
+			active = false;
+			dispatcherToJoin = dispatcher;
+		}
+		if(dispatcherToJoin == null){
+			return true;
+		}
+		LockSupport.unpark(dispatcherToJoin);
+		dispatcherToJoin.join(Math.max(1, unit.toMillis(timeout)));
+		return !dispatcherToJoin.isAlive();
+	}
+}
@@ -0,0 +1,121 @@
+package com.opower.connectionpool;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * JDK Flight Recorder event types emitted by the pool and its connection wrappers.
+ *
+ * Every call site checks shouldCommit() (or isEnabled()) before populating the event fields, so when no recording
+ * has these events enabled the only cost is the check itself. Borrow and validation events carry a default threshold
+ * so that even an enabled recording only captures the slow ones; lower it in the JFC settings to capture all of them.
+ * Stack traces are disabled by default to keep the hot-path events cheap.
+ *
+ * @author VinayG
+ */
+final class ConnectionPoolEvents {
+
+	private static final String CATEGORY = "OConn";
+	private static final String SUB_CATEGORY = "Connection Pool";
+
+	private ConnectionPoolEvents(){
+	}
+
+	@Name("com.opower.connectionpool.ConnectionBorrow")
+	@Label("Connection Borrow")
+	@Description("A connection was handed out by getConnection")
+	@Category({CATEGORY, SUB_CATEGORY})
+	@Threshold("10 ms")
+	@StackTrace(false)
+	static final class ConnectionBorrowEvent extends Event {
+		@Label("Connection Id")
+		long connectionId;
+
+		@Label("Priority")
+		String priority;
+
+		@Label("Wait Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long waitTime;
+
+		@Label("Available Connections")
+		int availableConnections;
+	}
+
+	@Name("com.opower.connectionpool.ConnectionRelease")
+	@Label("Connection Release")
+	@Description("A borrowed connection was returned to the pool")
+	@Category({CATEGORY, SUB_CATEGORY})
+	@StackTrace(false)
+	static final class ConnectionReleaseEvent extends Event {
+		@Label("Connection Id")
+		long connectionId;
+
+		@Label("Hold Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long holdTime;
+
+		@Label("Closed By Client")
+		boolean closedByClient;
+	}
+
+	@Name("com.opower.connectionpool.ConnectionCreate")
+	@Label("Connection Create")
+	@Description("A physical connection was opened to the database")
+	@Category({CATEGORY, SUB_CATEGORY})
+	@StackTrace(false)
+	static final class ConnectionCreateEvent extends Event {
+		@Label("Connection Id")
+		long connectionId;
+
+		@Label("Succeeded")
+		boolean succeeded;
+	}
+
+	@Name("com.opower.connectionpool.ConnectionClose")
+	@Label("Connection Close")
+	@Description("A physical connection was closed")
+	@Category({CATEGORY, SUB_CATEGORY})
+	@StackTrace(false)
+	static final class ConnectionCloseEvent extends Event {
+		@Label("Connection Id")
+		long connectionId;
+
+		@Label("Reason")
+		String reason;
+	}
+
+	@Name("com.opower.connectionpool.ConnectionAbandoned")
+	@Label("Connection Abandoned")
+	@Description("A borrowed connection exceeded the max idle time and was reclaimed by the pool")
+	@Category({CATEGORY, SUB_CATEGORY})
+	@StackTrace(false)
+	static final class ConnectionAbandonedEvent extends Event {
+		@Label("Connection Id")
+		long connectionId;
+
+		@Label("Hold Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long holdTime;
+	}
+
+	@Name("com.opower.connectionpool.ConnectionValidation")
+	@Label("Connection Validation")
+	@Description("A connection was checked for usability before re-entering the pool")
+	@Category({CATEGORY, SUB_CATEGORY})
+	@Threshold("10 ms")
+	@StackTrace(false)
+	static final class ConnectionValidationEvent extends Event {
+		@Label("Connection Id")
+		long connectionId;
+
+		@Label("Valid")
+		boolean valid;
+	}
+}
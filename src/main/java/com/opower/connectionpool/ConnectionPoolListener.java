@@ -0,0 +1,36 @@
+package com.opower.connectionpool;
+
+/**
+ * Receives the pool's connection lifecycle events, for tracing, auditing and the like. Register one with
+ * OConnectionPoolImpl.addListener.
+ *
+ * The pool does not call listeners itself. It publishes each event into a preallocated ring buffer and a dedicated
+ * dispatcher thread calls the listeners from there, in publication order. So listeners run off the borrowing threads
+ * and see an event shortly after it happened (nanoTime says when). A listener that throws is logged and skipped for
+ * that event.
+ *
+ * When listeners fall so far behind that the buffer (datasource.listener.bufferSize) fills up, the pool either drops
+ * new events and counts them (datasource.listener.whenFull=drop, the default) or makes the publishing thread wait for
+ * room (block). As events may be published while the pool's monitor is held, listeners must not call back into the pool.
+ *
+ * Connections are identified by the same ids as in the logs and flight recorder events. Times are in nanoseconds.
+ *
+ * @author VinayG
+ */
+public interface ConnectionPoolListener {
+
+	/* A connection was lent out after its borrower waited waitNanos for it. */
+	void connectionBorrowed(long nanoTime, long connectionId, long waitNanos);
+
+	/* A borrowed connection came back after holdNanos, or was closed by its borrower if closedByClient is set. */
+	void connectionReleased(long nanoTime, long connectionId, long holdNanos, boolean closedByClient);
+
+	/* A physical connection was opened. */
+	void connectionCreated(long nanoTime, long connectionId);
+
+	/* A physical connection was closed, for the given reason. */
+	void connectionDestroyed(long nanoTime, long connectionId, String reason);
+
+	/* A borrowed connection was reclaimed as abandoned (or past its deadline) after holdNanos. */
+	void connectionAbandoned(long nanoTime, long connectionId, long holdNanos);
+}
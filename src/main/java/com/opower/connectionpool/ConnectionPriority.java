@@ -0,0 +1,26 @@
+package com.opower.connectionpool;
+
+/**
+ * The priority class a borrower passes to OConnectionPoolImpl.getConnection. Each class is served from its own lane,
+ * which can hold connections in reserve and be capped through the datasource.lane.* properties.
+ * Waiting borrowers are served most urgent first; a waiter is promoted one class for every aging interval it has
+ * waited so that low priority work is not starved forever.
+ * 
+ * @author VinayG
+ */
+public enum ConnectionPriority {
+	
+	/* Latency critical callers, e.g. interactive API requests. */
+	HIGH,
+	
+	/* The default for callers that don't ask for a priority. */
+	NORMAL,
+	
+	/* Batch and background work. */
+	LOW;
+	
+	/* The suffix used for this lane in the datasource.lane.* properties. */
+	String propertyName() {
+		return name().toLowerCase();
+	}
+}
@@ -0,0 +1,23 @@
+package com.opower.connectionpool;
+
+/**
+ * The connection bound to a thread by OConnectionPoolImpl.withConnection, together with the number of references
+ * to it handed out within the scope (the outermost withConnection counts as the first one).
+ * The reference count is only ever touched by the owner, the thread the scope is bound to. Other threads releasing
+ * the bound connection leave it with the scope without dropping a reference.
+ *
+ * @author VinayG
+ */
+final class ConnectionScope {
+
+	final OConnection connection;
+
+	final Thread owner;
+
+	int references = 1;
+
+	ConnectionScope(OConnection connection, Thread owner){
+		this.connection = connection;
+		this.owner = owner;
+	}
+}
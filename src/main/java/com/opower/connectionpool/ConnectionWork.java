@@ -0,0 +1,16 @@
+package com.opower.connectionpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * A unit of work run by OConnectionPoolImpl.withConnection against the connection bound to the calling thread.
+ * Any getConnection call made while the work runs (directly or by code it calls) returns that same connection.
+ *
+ * @author VinayG
+ */
+public interface ConnectionWork<T> {
+
+	/* Performs the work. The connection must not be used once this returns. */
+	T execute(Connection connection) throws SQLException;
+}
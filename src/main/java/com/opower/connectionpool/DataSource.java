@@ -1,6 +1,12 @@
 package com.opower.connectionpool;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 import org.apache.log4j.Logger;
@@ -8,23 +14,103 @@ import org.apache.log4j.Logger;
 /**
  * A singleton DataSource instance bean that represents the properties provided in the datsource.properties file
  * 
+ * The properties are loaded once at class load time and can be replaced at runtime through
+ * OConnectionPoolImpl.reconfigure, hence the fields are volatile.
+ * 
  * @author VinayG
  */
 class DataSource {
 	
+	private static final String DATASOURCE_PROPERTIES = "datasource.properties";
+	
 	private static final String DATASOURCE_DRIVER = "datasource.driver";
 	private static final String DATASOURCE_URL = "datasource.url";
 	private static final String DATASOURCE_USERNAME = "datasource.username";
 	private static final String DATASOURCE_PASSWORD = "datasource.password";
 	private static final String DATASOURCE_POOLSIZE = "datasource.poolsize";
 	private static final String DATASOURCE_MAX_IDLE_TIME_IN_SECONDS = "datasource.maxIdleTimeInSeconds";
+	private static final String DATASOURCE_VALIDATION_TIMEOUT_IN_SECONDS = "datasource.validationTimeoutInSeconds";
+	private static final String DATASOURCE_WATCH_FOR_CHANGES = "datasource.watchForChanges";
+	private static final String DATASOURCE_LANE_PREFIX = "datasource.lane.";
+	private static final String DATASOURCE_LANE_RESERVED_SUFFIX = ".reserved";
+	private static final String DATASOURCE_LANE_MAX_CONNECTIONS_SUFFIX = ".maxConnections";
+	private static final String DATASOURCE_LANE_AGING_INTERVAL_IN_MILLIS = "datasource.laneAgingIntervalInMillis";
+	private static final String DATASOURCE_TENANT_MAX_CONNECTIONS = "datasource.tenant.maxConnections";
+	private static final String DATASOURCE_TENANT_MAX_WAITERS = "datasource.tenant.maxWaiters";
+	private static final String DATASOURCE_TENANT_EVICT_AFTER_IDLE_SECONDS = "datasource.tenant.evictAfterIdleSeconds";
+	private static final String DATASOURCE_BATCH_COALESCING_MAX_BATCH_SIZE = "datasource.batchCoalescing.maxBatchSize";
+	private static final String DATASOURCE_BATCH_COALESCING_MAX_DELAY_IN_MILLIS = "datasource.batchCoalescing.maxDelayInMillis";
+	private static final String DATASOURCE_INIT_SQL = "datasource.initSql";
+	private static final String DATASOURCE_WARM_STATEMENTS = "datasource.warmStatements";
+	private static final String DATASOURCE_STREAMING_FETCH_SIZE = "datasource.streaming.fetchSize";
+	private static final String DATASOURCE_RESULT_CACHE_MAX_BYTES = "datasource.resultCache.maxBytes";
+	private static final String DATASOURCE_RESULT_CACHE_TIME_TO_LIVE_IN_SECONDS = "datasource.resultCache.timeToLiveInSeconds";
+	private static final String DATASOURCE_RESULT_CACHE_BORROW_TIMEOUT_IN_MILLIS = "datasource.resultCache.borrowTimeoutInMillis";
+	private static final String DATASOURCE_FAILOVER_DETECT = "datasource.failover.detect";
+	private static final String DATASOURCE_STATEMENTS_WARN_ON_LEAK = "datasource.statements.warnOnLeak";
+	private static final String DATASOURCE_DRAIN_TIMEOUT_IN_SECONDS = "datasource.drainTimeoutInSeconds";
+	private static final String DATASOURCE_TELEMETRY_WINDOW_IN_SECONDS = "datasource.telemetry.windowInSeconds";
+	private static final String DATASOURCE_LISTENER_BUFFER_SIZE = "datasource.listener.bufferSize";
+	private static final String DATASOURCE_LISTENER_WHEN_FULL = "datasource.listener.whenFull";
+	private static final String WHEN_FULL_DROP = "drop";
+	private static final String WHEN_FULL_BLOCK = "block";
+	
+	protected volatile String driver;
+	protected volatile String url;
+	protected volatile String username;
+	protected volatile String password;
+	protected volatile int poolSize;
+	protected volatile int maxIdleTimeInSeconds;
+	protected volatile int validationTimeoutInSeconds;
+	protected volatile boolean watchForChanges;
+	
+	/* Per ConnectionPriority (indexed by ordinal): connections held back for the lane and the most it may borrow. */
+	protected volatile int[] laneReservedConnections;
+	protected volatile int[] laneMaxConnections;
+	protected volatile int laneAgingIntervalInMillis;
+	
+	/* Per tenant: the most connections it may borrow at once, how many of its borrowers may wait and how long it must
+	 * be quiet before its bookkeeping is evicted. */
+	protected volatile int tenantMaxConnections;
+	protected volatile int tenantMaxWaiters;
+	protected volatile int tenantEvictAfterIdleSeconds;
+	
+	/* The SQL run on every new connection before it enters the pool and the statements prepared on it. */
+	protected volatile String[] initSql;
+	protected volatile String[] warmStatements;
+	
+	/* The rows coalesced into one batch and how long a batch may be held back when a borrower calls
+	 * enableBatchCoalescing() without arguments (0 rows leaves it to each borrower to pass its own). */
+	protected volatile int batchCoalescingMaxBatchSize;
+	protected volatile int batchCoalescingMaxDelayInMillis;
+	
+	/* The fetch size set on the statements of every borrow, which stream inside the borrower's transactions (0 leaves it to
+	 * each borrower to enable it). */
+	protected volatile int streamingFetchSize;
+	
+	/* The most memory the cached query results may hold (0 disables the cache) and how long each stays fresh. */
+	protected volatile long resultCacheMaxBytes;
+	protected volatile int resultCacheTimeToLiveInSeconds;
+	
+	/* How long a cache miss waits for a connection to run the query on. */
+	protected volatile int resultCacheBorrowTimeoutInMillis;
+	
+	/* Whether a fatal failure on any connection fails the whole pool over (see FailoverDetection). */
+	protected volatile boolean failoverDetection;
+	
+	/* Whether releasing a connection with statements still open logs a warning. */
+	protected volatile boolean warnOnStatementLeaks;
+	
+	/* How long closing the pool waits for borrowed connections to be released. */
+	protected volatile int drainTimeoutInSeconds;
+	
+	/* How many seconds of telemetry the pool keeps (0 disables it). Read when the pool is created. */
+	protected volatile int telemetryWindowInSeconds;
 	
-	protected String driver;
-	protected String url;
-	protected String username;
-	protected String password;
-	protected int poolSize;
-	protected int maxIdleTimeInSeconds;
+	/* How many events the pool buffers for its listeners (read when the pool is created) and whether publishers wait
+	 * for room, rather than drop the event, when the buffer is full. */
+	protected volatile int listenerBufferSize;
+	protected volatile boolean listenerBlockWhenFull;
 	
 	private Logger log = Logger.getLogger(DataSource.class.getName());
 	
@@ -36,21 +122,169 @@ class DataSource {
 	
 	/* Loads the properties from the datasource.properties file which is expected to be in the classpath. */
 	private void initializeDataSource() {
-		Properties prop = new Properties();
     	try {
-    		prop.load(DataSource.class.getClassLoader().getResourceAsStream("datasource.properties"));
- 
-    		driver = prop.getProperty(DATASOURCE_DRIVER);
-    		url = prop.getProperty(DATASOURCE_URL);
-    		username = prop.getProperty(DATASOURCE_USERNAME);
-    		password = prop.getProperty(DATASOURCE_PASSWORD);
-    		poolSize = Integer.parseInt(prop.getProperty(DATASOURCE_POOLSIZE, "5").trim());
-    		maxIdleTimeInSeconds = Integer.parseInt(prop.getProperty(DATASOURCE_MAX_IDLE_TIME_IN_SECONDS, "5").trim());
+    		load(readProperties());
     	} catch (IOException ex) {
     		log.error("datasource.properties could not be loaded. " + ex.getMessage());
         }
 	}
 	
+	/* Applies the given properties. The numeric properties are parsed before anything is assigned so that a malformed
+	 * file leaves the current settings untouched. */
+	synchronized void load(Properties prop) {
+		int newPoolSize = Integer.parseInt(prop.getProperty(DATASOURCE_POOLSIZE, "5").trim());
+		int newMaxIdleTimeInSeconds = Integer.parseInt(prop.getProperty(DATASOURCE_MAX_IDLE_TIME_IN_SECONDS, "5").trim());
+		int newValidationTimeoutInSeconds = Integer.parseInt(prop.getProperty(DATASOURCE_VALIDATION_TIMEOUT_IN_SECONDS, "5").trim());
+		int newLaneAgingIntervalInMillis = Integer.parseInt(prop.getProperty(DATASOURCE_LANE_AGING_INTERVAL_IN_MILLIS, "1000").trim());
+		int newTenantMaxConnections = Integer.parseInt(prop.getProperty(DATASOURCE_TENANT_MAX_CONNECTIONS, String.valueOf(Integer.MAX_VALUE)).trim());
+		int newTenantMaxWaiters = Integer.parseInt(prop.getProperty(DATASOURCE_TENANT_MAX_WAITERS, "10").trim());
+		int newTenantEvictAfterIdleSeconds = Integer.parseInt(prop.getProperty(DATASOURCE_TENANT_EVICT_AFTER_IDLE_SECONDS, "300").trim());
+		int newBatchCoalescingMaxBatchSize = Integer.parseInt(prop.getProperty(DATASOURCE_BATCH_COALESCING_MAX_BATCH_SIZE, "0").trim());
+		int newBatchCoalescingMaxDelayInMillis = Integer.parseInt(prop.getProperty(DATASOURCE_BATCH_COALESCING_MAX_DELAY_IN_MILLIS, "50").trim());
+		int newStreamingFetchSize = Integer.parseInt(prop.getProperty(DATASOURCE_STREAMING_FETCH_SIZE, "0").trim());
+		long newResultCacheMaxBytes = Long.parseLong(prop.getProperty(DATASOURCE_RESULT_CACHE_MAX_BYTES, "0").trim());
+		int newResultCacheTimeToLiveInSeconds = Integer.parseInt(prop.getProperty(DATASOURCE_RESULT_CACHE_TIME_TO_LIVE_IN_SECONDS, "60").trim());
+		int newResultCacheBorrowTimeoutInMillis = Integer.parseInt(prop.getProperty(DATASOURCE_RESULT_CACHE_BORROW_TIMEOUT_IN_MILLIS, "5000").trim());
+		int newDrainTimeoutInSeconds = Integer.parseInt(prop.getProperty(DATASOURCE_DRAIN_TIMEOUT_IN_SECONDS, "30").trim());
+		int newTelemetryWindowInSeconds = Integer.parseInt(prop.getProperty(DATASOURCE_TELEMETRY_WINDOW_IN_SECONDS, "3600").trim());
+		int newListenerBufferSize = Integer.parseInt(prop.getProperty(DATASOURCE_LISTENER_BUFFER_SIZE, "1024").trim());
+		ConnectionPriority[] priorities = ConnectionPriority.values();
+		int[] newLaneReservedConnections = new int[priorities.length];
+		int[] newLaneMaxConnections = new int[priorities.length];
+		for(int i = 0; i < priorities.length; i++){
+			String lanePrefix = DATASOURCE_LANE_PREFIX + priorities[i].propertyName();
+			newLaneReservedConnections[i] = Integer.parseInt(prop.getProperty(lanePrefix + DATASOURCE_LANE_RESERVED_SUFFIX, "0").trim());
+			newLaneMaxConnections[i] = Integer.parseInt(prop.getProperty(lanePrefix + DATASOURCE_LANE_MAX_CONNECTIONS_SUFFIX,
+					String.valueOf(Integer.MAX_VALUE)).trim());
+		}
+		
+		driver = prop.getProperty(DATASOURCE_DRIVER);
+		url = prop.getProperty(DATASOURCE_URL);
+		username = prop.getProperty(DATASOURCE_USERNAME);
+		password = prop.getProperty(DATASOURCE_PASSWORD);
+		poolSize = newPoolSize;
+		maxIdleTimeInSeconds = newMaxIdleTimeInSeconds;
+		validationTimeoutInSeconds = newValidationTimeoutInSeconds;
+		watchForChanges = Boolean.parseBoolean(prop.getProperty(DATASOURCE_WATCH_FOR_CHANGES, "false").trim());
+		laneReservedConnections = newLaneReservedConnections;
+		laneMaxConnections = newLaneMaxConnections;
+		laneAgingIntervalInMillis = newLaneAgingIntervalInMillis;
+		tenantMaxConnections = newTenantMaxConnections;
+		tenantMaxWaiters = newTenantMaxWaiters;
+		tenantEvictAfterIdleSeconds = newTenantEvictAfterIdleSeconds;
+		initSql = splitStatements(prop.getProperty(DATASOURCE_INIT_SQL));
+		warmStatements = splitStatements(prop.getProperty(DATASOURCE_WARM_STATEMENTS));
+		batchCoalescingMaxBatchSize = newBatchCoalescingMaxBatchSize;
+		batchCoalescingMaxDelayInMillis = newBatchCoalescingMaxDelayInMillis;
+		streamingFetchSize = newStreamingFetchSize;
+		resultCacheMaxBytes = newResultCacheMaxBytes;
+		resultCacheTimeToLiveInSeconds = newResultCacheTimeToLiveInSeconds;
+		resultCacheBorrowTimeoutInMillis = newResultCacheBorrowTimeoutInMillis;
+		failoverDetection = Boolean.parseBoolean(prop.getProperty(DATASOURCE_FAILOVER_DETECT, "false").trim());
+		warnOnStatementLeaks = Boolean.parseBoolean(prop.getProperty(DATASOURCE_STATEMENTS_WARN_ON_LEAK, "false").trim());
+		drainTimeoutInSeconds = newDrainTimeoutInSeconds;
+		telemetryWindowInSeconds = newTelemetryWindowInSeconds;
+		listenerBufferSize = newListenerBufferSize;
+		listenerBlockWhenFull = WHEN_FULL_BLOCK.equalsIgnoreCase(prop.getProperty(DATASOURCE_LISTENER_WHEN_FULL, WHEN_FULL_DROP).trim());
+	}
+	
+	/* Splits a ; separated list of SQL statements, dropping blank ones. */
+	private static String[] splitStatements(String statements) {
+		List<String> sqls = new ArrayList<String>();
+		if(statements != null){
+			String[] split = statements.split(";");
+			for(int i = 0; i < split.length; i++){
+				if(split[i].trim().length() > 0){
+					sqls.add(split[i].trim());
+				}
+			}
+		}
+		return sqls.toArray(new String[sqls.size()]);
+	}
+	
+	/* Ensures the mandatory properties are present and the pool size, lane reservations, timeouts, intervals and limits
+	 * are usable before they are applied at runtime. */
+	static void validate(Properties prop) throws IllegalArgumentException {
+		if(prop.getProperty(DATASOURCE_DRIVER) == null || prop.getProperty(DATASOURCE_URL) == null){
+			throw new IllegalArgumentException(DATASOURCE_DRIVER + " and " + DATASOURCE_URL + " are mandatory.");
+		}
+		int newPoolSize = Integer.parseInt(prop.getProperty(DATASOURCE_POOLSIZE, "5").trim());
+		if(newPoolSize < 1){
+			throw new IllegalArgumentException(DATASOURCE_POOLSIZE + " must be at least 1.");
+		}
+		int totalReservedConnections = 0;
+		for(ConnectionPriority priority : ConnectionPriority.values()){
+			totalReservedConnections += Integer.parseInt(prop.getProperty(
+					DATASOURCE_LANE_PREFIX + priority.propertyName() + DATASOURCE_LANE_RESERVED_SUFFIX, "0").trim());
+		}
+		if(totalReservedConnections > newPoolSize){
+			throw new IllegalArgumentException("The lanes reserve more connections than " + DATASOURCE_POOLSIZE + ".");
+		}
+		requireNonNegative(prop, DATASOURCE_MAX_IDLE_TIME_IN_SECONDS);
+		requireNonNegative(prop, DATASOURCE_VALIDATION_TIMEOUT_IN_SECONDS);
+		requireNonNegative(prop, DATASOURCE_LANE_AGING_INTERVAL_IN_MILLIS);
+		requireNonNegative(prop, DATASOURCE_TENANT_MAX_CONNECTIONS);
+		requireNonNegative(prop, DATASOURCE_TENANT_MAX_WAITERS);
+		requireNonNegative(prop, DATASOURCE_TENANT_EVICT_AFTER_IDLE_SECONDS);
+		requireNonNegative(prop, DATASOURCE_BATCH_COALESCING_MAX_BATCH_SIZE);
+		requireNonNegative(prop, DATASOURCE_BATCH_COALESCING_MAX_DELAY_IN_MILLIS);
+		requireNonNegative(prop, DATASOURCE_STREAMING_FETCH_SIZE);
+		requireNonNegative(prop, DATASOURCE_RESULT_CACHE_MAX_BYTES);
+		requireNonNegative(prop, DATASOURCE_RESULT_CACHE_TIME_TO_LIVE_IN_SECONDS);
+		requireNonNegative(prop, DATASOURCE_RESULT_CACHE_BORROW_TIMEOUT_IN_MILLIS);
+		requireNonNegative(prop, DATASOURCE_DRAIN_TIMEOUT_IN_SECONDS);
+		requireNonNegative(prop, DATASOURCE_TELEMETRY_WINDOW_IN_SECONDS);
+		for(ConnectionPriority priority : ConnectionPriority.values()){
+			requireNonNegative(prop, DATASOURCE_LANE_PREFIX + priority.propertyName() + DATASOURCE_LANE_RESERVED_SUFFIX);
+			requireNonNegative(prop, DATASOURCE_LANE_PREFIX + priority.propertyName() + DATASOURCE_LANE_MAX_CONNECTIONS_SUFFIX);
+		}
+		String listenerBufferSize = prop.getProperty(DATASOURCE_LISTENER_BUFFER_SIZE);
+		if(listenerBufferSize != null && Integer.parseInt(listenerBufferSize.trim()) < 1){
+			throw new IllegalArgumentException(DATASOURCE_LISTENER_BUFFER_SIZE + " must be at least 1.");
+		}
+		String whenFull = prop.getProperty(DATASOURCE_LISTENER_WHEN_FULL, WHEN_FULL_DROP).trim();
+		if(!WHEN_FULL_DROP.equalsIgnoreCase(whenFull) && !WHEN_FULL_BLOCK.equalsIgnoreCase(whenFull)){
+			throw new IllegalArgumentException(DATASOURCE_LISTENER_WHEN_FULL + " must be " + WHEN_FULL_DROP + " or " + WHEN_FULL_BLOCK + ".");
+		}
+	}
+	
+	/* Rejects a negative value for the timeout, interval or limit, if it is set. */
+	private static void requireNonNegative(Properties prop, String key) throws IllegalArgumentException {
+		String value = prop.getProperty(key);
+		if(value != null && Long.parseLong(value.trim()) < 0){
+			throw new IllegalArgumentException(key + " must not be negative.");
+		}
+	}
+	
+	/* Reads the datasource.properties file from the classpath. */
+	static Properties readProperties() throws IOException {
+		InputStream in = DataSource.class.getClassLoader().getResourceAsStream(DATASOURCE_PROPERTIES);
+		if(in == null){
+			throw new IOException(DATASOURCE_PROPERTIES + " is not in the classpath.");
+		}
+		Properties prop = new Properties();
+		try {
+			prop.load(in);
+		} finally {
+			in.close();
+		}
+		return prop;
+	}
+	
+	/* Returns the datasource.properties file if it sits directly on the file system (as opposed to inside a jar),
+	 * else null. Only such a file can be watched for changes. */
+	static File getPropertiesFile() {
+		URL resource = DataSource.class.getClassLoader().getResource(DATASOURCE_PROPERTIES);
+		if(resource == null || !"file".equals(resource.getProtocol())){
+			return null;
+		}
+		try {
+			return new File(resource.toURI());
+		} catch (URISyntaxException e) {
+			return null;
+		}
+	}
+	
 	public static DataSource getInstance(){
 		return DataSource.dataSourceInstance;
 	}
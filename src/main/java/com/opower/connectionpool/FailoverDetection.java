@@ -0,0 +1,95 @@
+package com.opower.connectionpool;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Recognizes the failures that mean the database itself has gone away, as opposed to a single statement failing,
+ * so the pool can fail over every connection at once (see OConnectionPoolImpl.reportFailure).
+ *
+ * A failure is fatal if its SQLState, or that of any exception chained to it, is in class 08 (connection exception)
+ * or is one of Postgres' 57P01 (admin shutdown), 57P02 (crash shutdown) or 57P03 (cannot connect now).
+ *
+ * While datasource.failover.detect is set, the statements of borrowed connections are wrapped so their failures are
+ * reported too. A fatal failure then fails every connection over at once, so recovering from a primary failover takes
+ * one reconnect rather than one failed borrow per connection.
+ *
+ * @author VinayG
+ */
+final class FailoverDetection {
+
+	private static final String CONNECTION_EXCEPTION_CLASS = "08";
+	private static final String[] SHUTDOWN_STATES = {"57P01", "57P02", "57P03"};
+
+	/* How many chained exceptions are looked at before giving up, in case a driver chains them in a loop. */
+	private static final int MAX_CHAIN_LENGTH = 16;
+
+	private FailoverDetection(){
+	}
+
+	/* Returns true if the failure means the connection to the database has been lost. */
+	static boolean isFatal(SQLException failure) {
+		Throwable current = failure;
+		for(int i = 0; current != null && i < MAX_CHAIN_LENGTH; i++){
+			if(current instanceof SQLException && isFatal(((SQLException) current).getSQLState())){
+				return true;
+			}
+			Throwable next = current instanceof SQLException ? ((SQLException) current).getNextException() : null;
+			current = next != null ? next : current.getCause();
+		}
+		return false;
+	}
+
+	private static boolean isFatal(String sqlState) {
+		if(sqlState == null){
+			return false;
+		}
+		if(sqlState.startsWith(CONNECTION_EXCEPTION_CLASS)){
+			return true;
+		}
+		for(int i = 0; i < SHUTDOWN_STATES.length; i++){
+			if(SHUTDOWN_STATES[i].equals(sqlState)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/* Wraps a statement of the connection so that its failures are reported to the connection's pool. */
+	@SuppressWarnings("unchecked")
+	static <T extends Statement> T wrap(T statement, OConnection connection) {
+		Class<?> type = statement instanceof CallableStatement ? CallableStatement.class
+				: statement instanceof PreparedStatement ? PreparedStatement.class : Statement.class;
+		return (T) Proxy.newProxyInstance(FailoverDetection.class.getClassLoader(), new Class<?>[]{type},
+				new ReportingStatementHandler(statement, connection));
+	}
+
+	/* Forwards to the statement, reporting any SQLException it throws before rethrowing it. */
+	private static final class ReportingStatementHandler implements InvocationHandler {
+		private final Statement statement;
+		private final OConnection connection;
+
+		ReportingStatementHandler(Statement statement, OConnection connection){
+			this.statement = statement;
+			this.connection = connection;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			try {
+				return method.invoke(statement, args);
+			} catch (InvocationTargetException e) {
+				if(e.getCause() instanceof SQLException){
+					throw connection.reportFailure((SQLException) e.getCause());
+				}
+				throw e.getCause();
+			}
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package com.opower.connectionpool;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point-in-time snapshot of the borrowing activity of a single priority lane since the pool was created.
+ * Used to tune the reserved connections and caps of the lanes.
+ * 
+ * @author VinayG
+ */
+public final class LaneStatistics {
+
+	private final ConnectionPriority priority;
+	private final int activeConnections;
+	private final int waitingBorrowers;
+	private final long borrowCount;
+	private final long waitCount;
+	private final long timeoutCount;
+	private final long totalWaitNanos;
+	private final long maxWaitNanos;
+	
+	LaneStatistics(ConnectionPriority priority, int activeConnections, int waitingBorrowers, long borrowCount,
+			long waitCount, long timeoutCount, long totalWaitNanos, long maxWaitNanos){
+		this.priority = priority;
+		this.activeConnections = activeConnections;
+		this.waitingBorrowers = waitingBorrowers;
+		this.borrowCount = borrowCount;
+		this.waitCount = waitCount;
+		this.timeoutCount = timeoutCount;
+		this.totalWaitNanos = totalWaitNanos;
+		this.maxWaitNanos = maxWaitNanos;
+	}
+
+	public ConnectionPriority getPriority() {
+		return priority;
+	}
+
+	/* Connections currently borrowed through this lane. */
+	public int getActiveConnections() {
+		return activeConnections;
+	}
+
+	/* Borrowers currently waiting in this lane. */
+	public int getWaitingBorrowers() {
+		return waitingBorrowers;
+	}
+
+	/* Successful borrows, whether or not they had to wait. */
+	public long getBorrowCount() {
+		return borrowCount;
+	}
+
+	/* Successful borrows that had to wait for a connection. */
+	public long getWaitCount() {
+		return waitCount;
+	}
+
+	/* Borrowers that gave up waiting. */
+	public long getTimeoutCount() {
+		return timeoutCount;
+	}
+
+	/* Mean time the borrows that had to wait spent waiting. */
+	public double getAverageWaitMillis() {
+		return waitCount == 0 ? 0 : (double) totalWaitNanos / waitCount / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	/* Longest time a successful borrow spent waiting. */
+	public double getMaxWaitMillis() {
+		return (double) maxWaitNanos / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	@Override
+	public String toString() {
+		return priority + " [active=" + activeConnections + ", waiting=" + waitingBorrowers + ", borrows=" + borrowCount
+				+ ", waits=" + waitCount + ", timeouts=" + timeoutCount + ", avgWaitMillis=" + getAverageWaitMillis()
+				+ ", maxWaitMillis=" + getMaxWaitMillis() + "]";
+	}
+}
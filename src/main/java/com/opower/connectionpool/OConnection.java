@@ -17,6 +17,8 @@ import java.sql.Statement;
 import java.sql.Struct;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Wrapper class for Connection Object. Primarily "forwards" the method invocations to the
@@ -25,6 +27,14 @@ import java.util.Properties;
  * The purpose of using the wrapper is to ensure the pool has control over the lifecycle of the connections.
  * This design also facilitates invoking the pool features as and when required.
  * 
+ * An OConnection is a lightweight handle for a single borrow. The state that outlives the borrow is kept on the
+ * PooledConnection shared by every handle for the same physical connection. A handle is stamped with the generation
+ * of the PooledConnection it was issued for; once the borrow ends the generation moves on and the handle behaves as
+ * closed, regardless of who the physical connection has been lent to since. The generation is checked before and again
+ * after every call forwarded to the physical connection. A call racing the end of its borrow (a release from another
+ * thread, or the abandonment sweep) can still reach the physical connection after it has been reclaimed, but it then
+ * fails with IllegalStateException instead of returning as if nothing happened.
+ * 
  * @author VinayG
  */
 public class OConnection implements Connection {
@@ -35,9 +45,191 @@ public class OConnection implements Connection {
 	//The pool to which this connection belongs.
 	private final ConnectionPool _connectionPool;
 	
+	//The pool's record of the physical connection. Shared with every other handle issued for it.
+	final PooledConnection pooledConnection;
+	
+	//The generation of pooledConnection this handle was issued for.
+	private final long generation;
+	
+	//Coalesces repeated updates into batches once enableBatchCoalescing is invoked. Only used by the borrowing thread.
+	private BatchCoalescer batchCoalescer;
+	
+	//The fetch size set on new statements while streaming is enabled (0 when it is not). Only used by the borrowing thread.
+	private int streamingFetchSize;
+	
+	//The scope the handle is bound to by withConnection, if any. Closing it then only drops a reference.
+	volatile ConnectionScope scope;
+	
 	public OConnection(Connection connection, ConnectionPool connectionPool){
-		this._connection = connection;
+		this(new PooledConnection(connection, 0), connectionPool);
+	}
+	
+	OConnection(PooledConnection pooledConnection, ConnectionPool connectionPool){
+		this._connection = pooledConnection.connection;
 		this._connectionPool = connectionPool;
+		this.pooledConnection = pooledConnection;
+		this.generation = pooledConnection.generation;
+	}
+	
+	/* Returns true once the borrow this handle was issued for has ended (released, closed or reclaimed as abandoned). */
+	boolean isStale() {
+		return pooledConnection.generation != generation;
+	}
+	
+	/* Registers a statement created by the client with the pool so it can be cancelled if the borrow is abandoned, and
+	 * holds it to the borrow's deadline if there is one. */
+	private <T extends Statement> T track(T statement) throws SQLException {
+		return track(statement, null);
+	}
+	
+	/* As track(statement), additionally wrapping the statement for batch coalescing when enabled. The sql is given for
+	 * statements created by prepareStatement(sql) only, as those are the ones whose updates are coalesced. */
+	private <T extends Statement> T track(T statement, String sql) throws SQLException {
+		if(isStale()){
+			//The borrow ended while the statement was being created, so it must not be left on the connection.
+			statement.close();
+			recheckConnection();
+		}
+		try {
+			pooledConnection.applyDeadline(statement);
+		} catch (SQLException e) {
+			statement.close();
+			throw e;
+		}
+		if(streamingFetchSize > 0){
+			statement.setFetchSize(streamingFetchSize);
+		}
+		pooledConnection.trackStatement(statement);
+		T wrapped = batchCoalescer != null ? batchCoalescer.wrap(statement, sql) : statement;
+		if(_connectionPool instanceof OConnectionPoolImpl && ((OConnectionPoolImpl) _connectionPool).isDetectingFailover()){
+			return FailoverDetection.wrap(wrapped, this);
+		}
+		return wrapped;
+	}
+	
+	/* Tells the pool about a failure on this connection, so it can fail over if the database has gone away, and
+	 * returns the failure for the caller to throw. */
+	<T extends SQLException> T reportFailure(T failure) {
+		if(_connectionPool instanceof OConnectionPoolImpl){
+			((OConnectionPoolImpl) _connectionPool).reportFailure(pooledConnection, failure);
+		}
+		return failure;
+	}
+	
+	/* Sets up every statement created afterwards during this borrow to stream its results through a server-side cursor,
+	 * fetchSize rows at a time, instead of reading them all into memory. The driver only streams inside a transaction,
+	 * so the borrower has to have switched autoCommit off first; the pool never opens a transaction on its behalf.
+	 * Throws IllegalStateException if autoCommit is on. */
+	public void enableStreaming(int fetchSize) throws SQLException {
+		checkConnection();
+		if(fetchSize <= 0){
+			throw new IllegalArgumentException("The fetch size must be positive.");
+		}
+		if(getAutoCommit()){
+			throw new IllegalStateException("Streaming needs a transaction. Switch autoCommit off first.");
+		}
+		streamingFetchSize = fetchSize;
+	}
+	
+	/* Sets the fetch size of every statement created afterwards during this borrow, whatever the autoCommit state.
+	 * Used for datasource.streaming.fetchSize: statements stream once the borrower opens a transaction and are read
+	 * as a whole, as before, while autoCommit is on. */
+	void setStreamingFetchSize(int fetchSize) {
+		streamingFetchSize = fetchSize;
+	}
+	
+	/* Coalesces repeated executeUpdate() calls of statements from prepareStatement(sql) into batches of up to
+	 * maxBatchSize rows for the rest of this borrow (see BatchCoalescer). Only applies to statements created afterwards.
+	 * The pool never enables it on its own, as it changes what executeUpdate() means: inside a transaction the update
+	 * count it returns is provisional (always 1) and the real counts are only checked when the batch is flushed, which
+	 * throws a BatchUpdateException naming the SQL and row that failed. Enable it only for SQL that writes a single row
+	 * per execution. */
+	public void enableBatchCoalescing(int maxBatchSize, long maxDelay, TimeUnit unit) throws SQLException {
+		checkConnection();
+		if(maxBatchSize <= 0){
+			throw new IllegalArgumentException("The batch size must be positive.");
+		}
+		if(batchCoalescer == null){
+			batchCoalescer = new BatchCoalescer(pooledConnection, maxBatchSize, unit.toNanos(maxDelay));
+		}
+	}
+	
+	/* As enableBatchCoalescing(maxBatchSize, maxDelay, unit) with datasource.batchCoalescing.maxBatchSize and
+	 * datasource.batchCoalescing.maxDelayInMillis. Throws IllegalStateException if no batch size is configured. */
+	public void enableBatchCoalescing() throws SQLException {
+		DataSource ds = DataSource.getInstance();
+		if(ds.batchCoalescingMaxBatchSize <= 0){
+			throw new IllegalStateException("No batch size is configured for batch coalescing.");
+		}
+		enableBatchCoalescing(ds.batchCoalescingMaxBatchSize, ds.batchCoalescingMaxDelayInMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/* Executes any writes batch coalescing is holding back. */
+	public void flushBatches() throws SQLException {
+		checkConnection();
+		if(batchCoalescer != null){
+			batchCoalescer.flush();
+		}
+	}
+	
+	/* Closes the statements the borrower left open as the borrow ends, unless the physical connection has been closed
+	 * (which closed them already). Returns how many there were. Invoked by the pool before releasing the handle. */
+	int closeLeftOpenStatements() {
+		try {
+			if(_connection.isClosed()){
+				return 0;
+			}
+		} catch (SQLException e) {
+			return 0;
+		}
+		return pooledConnection.closeStatements();
+	}
+	
+	/* Flushes and closes the coalesced batches as the borrow ends. Invoked by the pool before releasing the handle. */
+	void endBatchCoalescing() throws SQLException {
+		if(batchCoalescer == null){
+			return;
+		}
+		try {
+			batchCoalescer.flush();
+		} finally {
+			batchCoalescer.close();
+			batchCoalescer = null;
+		}
+	}
+	
+	/* Runs a read-only query the caller has marked as cacheable on this connection and returns all of its rows,
+	 * unless a fresh result of the same SQL with equal parameters is in the pool's result cache.
+	 * Inside a transaction (autoCommit off) or with coalesced writes pending the cache is bypassed
+	 * both ways, so the borrower sees its own uncommitted writes and nobody else is served them. */
+	public CachedResult queryCached(String sql, Object... parameters) throws SQLException {
+		checkConnection();
+		boolean pendingWrites = batchCoalescer != null && batchCoalescer.hasPendingRows();
+		if(_connectionPool instanceof OConnectionPoolImpl && !pendingWrites && getAutoCommit()){
+			return ((OConnectionPoolImpl) _connectionPool).queryCached(this, sql, parameters);
+		}
+		return OConnectionPoolImpl.fetch(this, new ResultCache.Key(sql, parameters));
+	}
+	
+	/* Throws IllegalStateException if the borrow ended (see isStale) while a call was being forwarded to the physical
+	 * connection. checkConnection cannot stop that from happening, as the connection may be released from another thread
+	 * or reclaimed right after the check, so the call may already have run on a connection that has since been reclaimed
+	 * or lent to another borrower; rechecking afterwards makes sure the caller at least finds out. */
+	private void recheckConnection() throws IllegalStateException {
+		if(isStale()){
+			throw new IllegalStateException("This connection was closed or released while the call was in progress.");
+		}
+	}
+	
+	/* As recheckConnection(), returning the result of the forwarded call. */
+	private <T> T recheckConnection(T result) throws IllegalStateException {
+		recheckConnection();
+		return result;
+	}
+	
+	/* Returns the identifier of the wrapped physical connection used in logs and flight recorder events. */
+	long getConnectionId() {
+		return pooledConnection.id;
 	}
 	
 	/**
@@ -49,7 +241,7 @@ public class OConnection implements Connection {
 	 * @throws IllegalStateException
 	 */
 	private void checkConnection() throws IllegalStateException {
-		if(_connection == null){
+		if(isStale()){
 			throw new IllegalStateException("This connection may have already been closed or released.");
 		}
 		if(_connectionPool instanceof OConnectionPoolImpl){
@@ -60,83 +252,143 @@ public class OConnection implements Connection {
 	@Override
 	public boolean isWrapperFor(Class<?> arg0) throws SQLException {
 		checkConnection();
-		return _connection.isWrapperFor(arg0);
+		try {
+			return recheckConnection(_connection.isWrapperFor(arg0));
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public <T> T unwrap(Class<T> arg0) throws SQLException {
 		checkConnection();
-		return _connection.unwrap(arg0);
+		try {
+			return recheckConnection(_connection.unwrap(arg0));
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public void clearWarnings() throws SQLException {
 		checkConnection();
-		_connection.clearWarnings();
+		try {
+			_connection.clearWarnings();
+			recheckConnection();
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	/*
 	 * Invoking releaseConnection on close so that the connection can be promptly reinserted into the pool.
 	 * This would ensure that closed connections that arent returned dont result in a smaller pool until they are detected as abandoned.
+	 * A handle bound to a thread by withConnection is only released (which drops a reference) so the scope can keep using it.
 	 */
 	@Override
 	public void close() throws SQLException {
-		if(_connection == null){
+		if(isStale()){
+			return;
+		}
+		if(scope != null){
+			_connectionPool.releaseConnection(this);
 			return;
 		}
 		checkConnection();
+		if(batchCoalescer != null){
+			batchCoalescer.close();
+			batchCoalescer = null;
+		}
 		_connection.close();
+		pooledConnection.closedByClient = true;
+		OConnectionPoolImpl.commitCloseEvent(pooledConnection.id, "closed by client");
 		_connectionPool.releaseConnection(this);
 	}
 
 	@Override
 	public void commit() throws SQLException {
 		checkConnection();
-		_connection.commit();
+		try {
+			if(batchCoalescer != null){
+				batchCoalescer.flush();
+			}
+			_connection.commit();
+			recheckConnection();
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public Array createArrayOf(String typeName, Object[] elements)
 			throws SQLException {
 		checkConnection();
-		return _connection.createArrayOf(typeName, elements);
+		try {
+			return recheckConnection(_connection.createArrayOf(typeName, elements));
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public Blob createBlob() throws SQLException {
 		checkConnection();
-		return _connection.createBlob();
+		try {
+			return recheckConnection(_connection.createBlob());
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public Clob createClob() throws SQLException {
 		checkConnection();
-		return _connection.createClob();
+		try {
+			return recheckConnection(_connection.createClob());
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public NClob createNClob() throws SQLException {
 		checkConnection();
-		return _connection.createNClob();
+		try {
+			return recheckConnection(_connection.createNClob());
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public SQLXML createSQLXML() throws SQLException {
 		checkConnection();
-		return _connection.createSQLXML();
+		try {
+			return recheckConnection(_connection.createSQLXML());
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public Statement createStatement() throws SQLException {
 		checkConnection();
-		return _connection.createStatement();
+		try {
+			return track(_connection.createStatement());
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public Statement createStatement(int resultSetType, int resultSetConcurrency)
 			throws SQLException {
 		checkConnection();
-		return _connection.createStatement(resultSetType, resultSetConcurrency);
+		try {
+			return track(_connection.createStatement(resultSetType, resultSetConcurrency));
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
@@ -144,110 +396,178 @@ public class OConnection implements Connection {
 			int resultSetConcurrency, int resultSetHoldability)
 			throws SQLException {
 		checkConnection();
-		return _connection.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+		try {
+			return track(_connection.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability));
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public Struct createStruct(String typeName, Object[] attributes)
 			throws SQLException {
 		checkConnection();
-		return _connection.createStruct(typeName, attributes);
+		try {
+			return recheckConnection(_connection.createStruct(typeName, attributes));
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public boolean getAutoCommit() throws SQLException {
 		checkConnection();
-		return _connection.getAutoCommit();
+		try {
+			return recheckConnection(_connection.getAutoCommit());
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public String getCatalog() throws SQLException {
 		checkConnection();
-		return _connection.getCatalog();
+		try {
+			return recheckConnection(_connection.getCatalog());
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public Properties getClientInfo() throws SQLException {
 		checkConnection();
-		return _connection.getClientInfo();
+		try {
+			return recheckConnection(_connection.getClientInfo());
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public String getClientInfo(String name) throws SQLException {
 		checkConnection();
-		return _connection.getClientInfo(name);
+		try {
+			return recheckConnection(_connection.getClientInfo(name));
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public int getHoldability() throws SQLException {
 		checkConnection();
-		return _connection.getHoldability();
+		try {
+			return recheckConnection(_connection.getHoldability());
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public DatabaseMetaData getMetaData() throws SQLException {
 		checkConnection();
-		return _connection.getMetaData();
+		try {
+			return recheckConnection(_connection.getMetaData());
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public int getTransactionIsolation() throws SQLException {
 		checkConnection();
-		return _connection.getTransactionIsolation();
+		try {
+			return recheckConnection(_connection.getTransactionIsolation());
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public Map<String, Class<?>> getTypeMap() throws SQLException {
 		checkConnection();
-		return _connection.getTypeMap();
+		try {
+			return recheckConnection(_connection.getTypeMap());
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public SQLWarning getWarnings() throws SQLException {
 		checkConnection();
-		return _connection.getWarnings();
+		try {
+			return recheckConnection(_connection.getWarnings());
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
-	/* Returns true if the wrapped physical connection has been set to null (i.e: connection has been returned to pool).
+	/* Returns true if this handle is stale (i.e: connection has been returned to pool).
 	 * else forwards on to wrapped connection. */
 	@Override
 	public boolean isClosed() throws SQLException {
-		if(_connection == null){
+		if(isStale()){
 			return true;
 		}
 		checkConnection();
-		return _connection.isClosed();
+		try {
+			return _connection.isClosed();
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public boolean isReadOnly() throws SQLException {
 		checkConnection();
-		return _connection.isReadOnly();
+		try {
+			return recheckConnection(_connection.isReadOnly());
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public boolean isValid(int timeout) throws SQLException {
 		checkConnection();
-		return _connection.isValid(timeout);
+		try {
+			return recheckConnection(_connection.isValid(timeout));
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public String nativeSQL(String sql) throws SQLException {
 		checkConnection();
-		return _connection.nativeSQL(sql);
+		try {
+			return recheckConnection(_connection.nativeSQL(sql));
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public CallableStatement prepareCall(String sql) throws SQLException {
 		checkConnection();
-		return _connection.prepareCall(sql);
+		try {
+			return track(_connection.prepareCall(sql));
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public CallableStatement prepareCall(String sql, int resultSetType,
 			int resultSetConcurrency) throws SQLException {
 		checkConnection();
-		return _connection.prepareCall(sql, resultSetType, resultSetConcurrency);
+		try {
+			return track(_connection.prepareCall(sql, resultSetType, resultSetConcurrency));
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
@@ -255,41 +575,67 @@ public class OConnection implements Connection {
 			int resultSetConcurrency, int resultSetHoldability)
 			throws SQLException {
 		checkConnection();
-		return _connection.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+		try {
+			return track(_connection.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability));
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public PreparedStatement prepareStatement(String sql) throws SQLException {
 		checkConnection();
-		return _connection.prepareStatement(sql);
+		PreparedStatement warmStatement = pooledConnection.warmStatements == null ? null
+				: pooledConnection.warmStatements.lend(sql);
+		try {
+			return track(warmStatement != null ? warmStatement : _connection.prepareStatement(sql), sql);
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys)
 			throws SQLException {
 		checkConnection();
-		return _connection.prepareStatement(sql, autoGeneratedKeys);
+		try {
+			return track(_connection.prepareStatement(sql, autoGeneratedKeys));
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public PreparedStatement prepareStatement(String sql, int[] columnIndexes)
 			throws SQLException {
 		checkConnection();
-		return _connection.prepareStatement(sql, columnIndexes);
+		try {
+			return track(_connection.prepareStatement(sql, columnIndexes));
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public PreparedStatement prepareStatement(String sql, String[] columnNames)
 			throws SQLException {
 		checkConnection();
-		return _connection.prepareStatement(sql, columnNames);
+		try {
+			return track(_connection.prepareStatement(sql, columnNames));
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public PreparedStatement prepareStatement(String sql, int resultSetType,
 			int resultSetConcurrency) throws SQLException {
 		checkConnection();
-		return _connection.prepareStatement(sql, resultSetType, resultSetConcurrency);
+		try {
+			return track(_connection.prepareStatement(sql, resultSetType, resultSetConcurrency));
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
@@ -297,87 +643,222 @@ public class OConnection implements Connection {
 			int resultSetConcurrency, int resultSetHoldability)
 			throws SQLException {
 		checkConnection();
-		return _connection.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+		try {
+			return track(_connection.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability));
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public void releaseSavepoint(Savepoint savepoint) throws SQLException {
 		checkConnection();
-		_connection.releaseSavepoint(savepoint);
+		try {
+			_connection.releaseSavepoint(savepoint);
+			recheckConnection();
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public void rollback() throws SQLException {
 		checkConnection();
-		_connection.rollback();
+		try {
+			if(batchCoalescer != null){
+				batchCoalescer.discard();
+			}
+			_connection.rollback();
+			recheckConnection();
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public void rollback(Savepoint savepoint) throws SQLException {
 		checkConnection();
-		_connection.releaseSavepoint(savepoint);
+		try {
+			if(batchCoalescer != null){
+				batchCoalescer.flush();
+			}
+			_connection.rollback(savepoint);
+			recheckConnection();
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public void setAutoCommit(boolean autoCommit) throws SQLException {
 		checkConnection();
-		_connection.setAutoCommit(autoCommit);
+		try {
+			if(batchCoalescer != null){
+				batchCoalescer.flush();
+			}
+			_connection.setAutoCommit(autoCommit);
+			recheckConnection();
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public void setCatalog(String catalog) throws SQLException {
 		checkConnection();
-		_connection.setCatalog(catalog);
+		try {
+			_connection.setCatalog(catalog);
+			recheckConnection();
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public void setClientInfo(Properties properties)
 			throws SQLClientInfoException {
 		checkConnection();
-		_connection.setClientInfo(properties);
+		try {
+			_connection.setClientInfo(properties);
+			recheckConnection();
+		} catch (SQLClientInfoException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public void setClientInfo(String name, String value)
 			throws SQLClientInfoException {
 		checkConnection();
-		_connection.setClientInfo(name, value);
+		try {
+			_connection.setClientInfo(name, value);
+			recheckConnection();
+		} catch (SQLClientInfoException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public void setHoldability(int holdability) throws SQLException {
 		checkConnection();
-		_connection.setHoldability(holdability);
+		try {
+			_connection.setHoldability(holdability);
+			recheckConnection();
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public void setReadOnly(boolean readOnly) throws SQLException {
 		checkConnection();
-		_connection.setReadOnly(readOnly);
+		try {
+			_connection.setReadOnly(readOnly);
+			recheckConnection();
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public Savepoint setSavepoint() throws SQLException {
 		checkConnection();
-		return _connection.setSavepoint();
+		try {
+			if(batchCoalescer != null){
+				batchCoalescer.flush();
+			}
+			return recheckConnection(_connection.setSavepoint());
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public Savepoint setSavepoint(String name) throws SQLException {
 		checkConnection();
-		return _connection.setSavepoint(name);
+		try {
+			if(batchCoalescer != null){
+				batchCoalescer.flush();
+			}
+			return recheckConnection(_connection.setSavepoint(name));
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public void setTransactionIsolation(int level) throws SQLException {
 		checkConnection();
-		_connection.setTransactionIsolation(level);
+		try {
+			_connection.setTransactionIsolation(level);
+			recheckConnection();
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 	@Override
 	public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
 		checkConnection();
-		_connection.setTypeMap(map);
+		try {
+			_connection.setTypeMap(map);
+			recheckConnection();
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
+	}
+
+	@Override
+	public void setSchema(String schema) throws SQLException {
+		checkConnection();
+		try {
+			_connection.setSchema(schema);
+			recheckConnection();
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
+	}
+
+	@Override
+	public String getSchema() throws SQLException {
+		checkConnection();
+		try {
+			return recheckConnection(_connection.getSchema());
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
+	}
+
+	@Override
+	public void abort(Executor executor) throws SQLException {
+		checkConnection();
+		try {
+			_connection.abort(executor);
+			recheckConnection();
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
+	}
+
+	@Override
+	public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
+		checkConnection();
+		try {
+			_connection.setNetworkTimeout(executor, milliseconds);
+			recheckConnection();
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
+	}
+
+	@Override
+	public int getNetworkTimeout() throws SQLException {
+		checkConnection();
+		try {
+			return recheckConnection(_connection.getNetworkTimeout());
+		} catch (SQLException e) {
+			throw reportFailure(e);
+		}
 	}
 
 }
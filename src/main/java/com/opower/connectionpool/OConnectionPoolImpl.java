@@ -1,64 +1,199 @@
 package com.opower.connectionpool;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.Callable;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import org.apache.log4j.Logger;
 
+import com.opower.connectionpool.ConnectionPoolEvents.ConnectionAbandonedEvent;
+import com.opower.connectionpool.ConnectionPoolEvents.ConnectionBorrowEvent;
+import com.opower.connectionpool.ConnectionPoolEvents.ConnectionCloseEvent;
+import com.opower.connectionpool.ConnectionPoolEvents.ConnectionCreateEvent;
+import com.opower.connectionpool.ConnectionPoolEvents.ConnectionReleaseEvent;
+import com.opower.connectionpool.ConnectionPoolEvents.ConnectionValidationEvent;
+
 /**
- * A ConnectionPool that maintains a pool of OConnections. (Uses a LinkedList data structure).
+ * A ConnectionPool that maintains a pool of PooledConnections (Uses an ArrayDeque data structure) and lends them out
+ * wrapped in OConnection handles.
  * It eagerly initializes the connections on instantiation so first time callers don't have to wait.
- * Uses a DataSource bean to determine the user settings. 
- * 
- * Maintains a map of connections to FutureTask. This is used to track the idle time of connections given from the pool.
- * Idle time is reset every time a connection method is invoked. Hence active connections are not considered abandoned
- * and are not forcibly recovered. Once idle time surpasses set limit, the connection
- * is released back into the pool by means of a scheduledTask. 
- * 
+ * Uses a DataSource bean to determine the user settings, which can be changed at runtime (see reconfigure).
+ *
+ * Every PooledConnection records the time of the last method invoked on it by its current borrower. Hence active
+ * connections are not considered abandoned and are not forcibly recovered. Once idle time surpasses the set limit,
+ * the connection is reclaimed by a periodic releaseOnAbandonmentTask and quarantined before it re-enters the pool.
+ *
+ * Borrowers may pass a ConnectionPriority, a deadline (getConnectionUntil) and a tenant (see TenantBulkhead), or bind
+ * a connection to the thread with withConnection. The pool is shut down with close or drain.
+ *
  * @author VinayG
  */
-public class OConnectionPoolImpl implements ConnectionPool {
-	
-	/* The pool of connections.*/
-	private List<Connection> connectionList;
-	
-	/* Map of releaseOnAbandonmentTaskHandle for every borrowed connection. */
-	private Map<Connection, ScheduledFuture> releaseOnAbandonmentTaskMap;
+public class OConnectionPoolImpl implements ConnectionPool, AutoCloseable {
+
+	/* How often the borrowed connections are checked for abandonment. */
+	private static final long ABANDONMENT_SWEEP_INTERVAL_IN_MILLIS = 250;
+
+	/* How long closing waits for the physical connections to close once the drain deadline has passed. */
+	private static final long CLOSE_TIMEOUT_IN_SECONDS = 10;
+
+	/* How often the pool's state is sampled for telemetry. */
+	private static final long TELEMETRY_INTERVAL_IN_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/* Numbers the pools in JMX names. */
+	private static final AtomicLong poolSequence = new AtomicLong();
+
+	/* How often the tenants are checked for having gone quiet. */
+	private static final long TENANT_EVICTION_INTERVAL_IN_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/* The pool of idle connections. Guarded by the pool's monitor. */
+	private final Deque<PooledConnection> connectionList = new ArrayDeque<PooledConnection>();
+
+	/* Every physical connection currently owned by the pool, idle or borrowed. Guarded by the pool's monitor. */
+	private final List<PooledConnection> allConnections = new ArrayList<PooledConnection>();
+
+	/* One lane per ConnectionPriority, indexed by ordinal. Guarded by the pool's monitor. */
+	private final PriorityLane[] lanes;
+
+	/* Borrowers waiting for a connection, in arrival order. Guarded by the pool's monitor. */
+	private final List<Waiter> waiters = new ArrayList<Waiter>();
+
+	/* The bulkhead of every tenant that has borrowed recently. */
+	private final ConcurrentHashMap<String, TenantBulkhead> tenantBulkheads = new ConcurrentHashMap<String, TenantBulkhead>();
+
+	/* Results of the queries run through queryCached. */
+	private final ResultCache resultCache = new ResultCache();
+
+	/* The pool's telemetry, or null if datasource.telemetry.windowInSeconds is 0, and its JMX name (null if it could
+	 * not be registered). */
+	private final PoolTelemetry telemetry;
+	private ObjectName telemetryName;
+
+	/* System.nanoTime() of the last telemetry sample. Only accessed by the abandonment sweep. */
+	private long lastTelemetrySampleNanos = System.nanoTime();
+
+	/* Carries the pool's events to the listeners. */
+	private final ConnectionPoolEventRing events;
+
+	/* The connection bound to the thread by withConnection, if any. */
+	private final ThreadLocal<ConnectionScope> boundScope = new ThreadLocal<ConnectionScope>();
+
+	/* System.nanoTime() of the last tenant eviction. Only accessed by the abandonment sweep. */
+	private long lastTenantEvictionNanos = System.nanoTime();
+
+	/* Moved on whenever the url or credentials change. Guarded by the pool's monitor. */
+	private long connectionEpoch;
+
+	/* Number of connections being opened in the background. Guarded by the pool's monitor. */
+	private int pendingConnections;
 	
-	/* Scheduler service that spawns time-delay based future tasks. */
+	/* Number of statements left open by borrowers and closed on release. */
+	private final LongAdder leakedStatements = new LongAdder();
+
+	/* Set once the pool starts shutting down. Written under the pool's monitor. */
+	private volatile boolean closing;
+
+	/* Number of times the pool has failed over. Guarded by the pool's monitor. */
+	private long failovers;
+
+	/* Watches the datasource.properties file when requested. Guarded by configurationWatcherLock. */
+	private WatchService configurationWatcher;
+	private final Object configurationWatcherLock = new Object();
+
+	/* Scheduler service that runs the abandonment sweep, the quarantine of reclaimed connections and the background
+	 * opening and closing of connections. */
 	private ScheduledExecutorService scheduler;
-	
+
 	/* The datasource bean for user properties. */
 	private DataSource ds;
 
 	private Logger log = Logger.getLogger(OConnectionPoolImpl.class.getName());
-	
-	/* Constructor eagerly initializes the OConnection Pool. 
-	 * The list and map are synchronized in order to prevent multiple threads from simultaneously invoking getConnection
-	 * and corrupting the pool. */
+
+	/* Constructor eagerly initializes the OConnection Pool.
+	 * The idle and borrowed state is guarded by the pool's monitor in order to prevent multiple threads from
+	 * simultaneously invoking getConnection and corrupting the pool. */
 	public OConnectionPoolImpl() {
 		ds = DataSource.getInstance();
-		connectionList = Collections.synchronizedList(new LinkedList<Connection>());
+		events = new ConnectionPoolEventRing(ds.listenerBufferSize);
+		telemetry = ds.telemetryWindowInSeconds > 0 ? new PoolTelemetry(ds.telemetryWindowInSeconds) : null;
+		ConnectionPriority[] priorities = ConnectionPriority.values();
+		lanes = new PriorityLane[priorities.length];
+		for(int i = 0; i < priorities.length; i++){
+			lanes[i] = new PriorityLane(priorities[i]);
+		}
 		registerDriver();
 		initializePool();
 		initializeAbandonReleaseResources();
+		initializeConfigurationWatcher();
+		registerTelemetry();
 	}
-	
+
+	/* Publishes the telemetry over JMX. A failure only costs the JMX view. */
+	private void registerTelemetry() {
+		if(telemetry == null){
+			return;
+		}
+		try {
+			ObjectName name = new ObjectName("com.opower.connectionpool:type=PoolTelemetry,id=" + poolSequence.incrementAndGet());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(telemetry, name);
+			telemetryName = name;
+		} catch (JMException e) {
+			log.error("Unable to register the pool telemetry with JMX. " + e.getMessage());
+		}
+	}
+
+	/* Starts watching datasource.properties if the user asked for it and the file can be watched. */
+	private void initializeConfigurationWatcher() {
+		if(!ds.watchForChanges){
+			return;
+		}
+		File propertiesFile = DataSource.getPropertiesFile();
+		if(propertiesFile == null){
+			log.error("datasource.watchForChanges is set but datasource.properties is not a file on the file system.");
+			return;
+		}
+		try {
+			watchConfiguration(propertiesFile);
+		} catch (IOException e) {
+			log.error("Unable to watch " + propertiesFile + ". " + e.getMessage());
+		}
+	}
+
 	private void initializeAbandonReleaseResources() {
-		releaseOnAbandonmentTaskMap = Collections.synchronizedMap(new HashMap<Connection, ScheduledFuture>());
 	    scheduler =  Executors.newScheduledThreadPool(ds.poolSize);
+	    ReleaseOnAbandonmentTask releaseOnAbandonmentTask = getReleaseOnAbandonmentTask(this, scheduler);
+	    releaseOnAbandonmentTask.handle = scheduler.scheduleWithFixedDelay(releaseOnAbandonmentTask,
+	    		ABANDONMENT_SWEEP_INTERVAL_IN_MILLIS, ABANDONMENT_SWEEP_INTERVAL_IN_MILLIS, TimeUnit.MILLISECONDS);
 	}
 
 	private void registerDriver(){
@@ -69,145 +204,1284 @@ public class OConnectionPoolImpl implements ConnectionPool {
 		   log.error("Unable to load driver class!");
 		}
 	}
-	
-	/* Creates the physical connection and wraps it in the custom oConnection wrapper and returns it. */
-	private Connection createConnection() {
-		OConnection oConnection  = null;
+
+	/* Creates the physical connection, registers it with the pool and returns it.
+	 * The epoch is read before the url and credentials so that a connection can only ever be tagged with an epoch
+	 * that is older than its credentials, in which case it is simply rolled over again. */
+	private PooledConnection createConnection() {
+		PooledConnection pooledConnection = null;
 		Connection connection;
+		long epoch;
+		String url, username, password;
+		synchronized(this){
+			epoch = connectionEpoch;
+		}
+		synchronized(ds){
+			url = ds.url;
+			username = ds.username;
+			password = ds.password;
+		}
+		ConnectionCreateEvent createEvent = new ConnectionCreateEvent();
+		createEvent.begin();
 		try {
-			connection = DriverManager.getConnection(ds.url, ds.username, ds.password);
+			connection = DriverManager.getConnection(url, username, password);
 		} catch (SQLException e) {
+			if(createEvent.shouldCommit()){
+				createEvent.succeeded = false;
+				createEvent.commit();
+			}
+			if(telemetry != null){
+				telemetry.recordCreationFailure();
+			}
 			throw new RuntimeException("Unable to establish connections to the database. Is the datasource.properties properly formed? ");
 		}
-		oConnection = new OConnection(connection, this);
-		return oConnection;
+		pooledConnection = new PooledConnection(connection, epoch);
+		try {
+			warmUp(pooledConnection);
+		} catch (SQLException e) {
+			try {
+				connection.close();
+			} catch (SQLException closeFailure) {
+				//Already failing the creation.
+			}
+			if(createEvent.shouldCommit()){
+				createEvent.succeeded = false;
+				createEvent.commit();
+			}
+			if(telemetry != null){
+				telemetry.recordCreationFailure();
+			}
+			throw new RuntimeException("Unable to initialize a new connection. Is datasource.initSql or datasource.warmStatements valid? "
+					+ e.getMessage());
+		}
+		synchronized(this){
+			allConnections.add(pooledConnection);
+		}
+		if(createEvent.shouldCommit()){
+			createEvent.connectionId = pooledConnection.id;
+			createEvent.succeeded = true;
+			createEvent.commit();
+		}
+		publish(ConnectionPoolEventRing.CREATED, pooledConnection.id, 0, false, null);
+		return pooledConnection;
 	}
 
-	/* Fetches a connection from the pool provided one is available. Invokes addNewReleaseOnAbandonmentHandleToMap which
-	 * in turn schedules a releaseOnAbandonmentTask and Inserts the corresponding releaseOnAbandonmentHandle into the map. 
+	/* Runs datasource.initSql on a new connection and prepares datasource.warmStatements on it, so its first borrower
+	 * finds it ready. Invoked before the connection is visible to borrowers, on whichever thread is creating it. */
+	private void warmUp(PooledConnection pooledConnection) throws SQLException {
+		String[] initSql = ds.initSql;
+		String[] warmStatements = ds.warmStatements;
+		if(initSql != null && initSql.length > 0){
+			Statement statement = pooledConnection.connection.createStatement();
+			try {
+				for(int i = 0; i < initSql.length; i++){
+					statement.execute(initSql[i]);
+				}
+			} finally {
+				statement.close();
+			}
+		}
+		if(warmStatements != null && warmStatements.length > 0){
+			pooledConnection.warmStatements = new WarmStatements(pooledConnection);
+			pooledConnection.warmStatements.prepare(pooledConnection.connection, warmStatements);
+		}
+	}
+
+	/* Fetches a NORMAL priority connection from the pool provided one is available right away.
 	 * Throws exception if the pool is empty.*/
 	@Override
 	public Connection getConnection() throws SQLException {
-		if(connectionList.isEmpty()){
-			throw new IllegalStateException("Connection Pool Currently Empty.");
-		} 
-		Connection connectionToReturn = connectionList.remove(0);
-        addNewReleaseOnAbandonmentHandleToMap(connectionToReturn);
-        
+		return getConnection(ConnectionPriority.NORMAL, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/* Fetches a connection for the given priority provided one is available to its lane right away.
+	 * Throws exception if the pool is empty or the lane has no capacity. */
+	public Connection getConnection(ConnectionPriority priority) throws SQLException {
+		return getConnection(priority, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/* Fetches a connection for the given priority, waiting up to the timeout for one to become available to its lane,
+	 * and hands it out in a new OConnection handle. Marks the connection as borrowed so that the
+	 * releaseOnAbandonmentTask starts tracking its idle time.
+	 * Throws IllegalStateException if no connection became available in time. */
+	public Connection getConnection(ConnectionPriority priority, long timeout, TimeUnit unit) throws SQLException {
+		return getConnection(null, priority, timeout, unit);
+	}
+
+	/* Fetches a NORMAL priority connection on behalf of the tenant provided one is available right away and the tenant
+	 * is below its limit. */
+	public Connection getConnection(String tenant) throws SQLException {
+		return getConnection(tenant, ConnectionPriority.NORMAL, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/* Fetches a connection on behalf of the tenant, waiting up to the timeout first for the tenant to be below its
+	 * limit and then for a connection to become available to the priority's lane. A null tenant is not limited.
+	 * Throws IllegalStateException if the tenant already has too many borrowers waiting or nothing became available in time.
+	 *
+	 * Inside withConnection every overload of getConnection returns the connection bound to the thread instead, whatever
+	 * the tenant and priority. */
+	public Connection getConnection(String tenant, ConnectionPriority priority, long timeout, TimeUnit unit) throws SQLException {
+		ConnectionScope scope = boundScope.get();
+		if(scope != null){
+			return referenceScope(scope);
+		}
+		long borrowStartNanos = System.nanoTime();
+		return borrow(tenant, priority, borrowStartNanos, borrowStartNanos + unit.toNanos(timeout), false);
+	}
+
+	/* Fetches a connection for the priority that the caller must be done with by the deadline, a System.nanoTime()
+	 * value. Waits until the deadline for one to become available, and the time remaining is then enforced on the work
+	 * done with it: every statement created on the connection gets the remaining time as its query timeout, and once the
+	 * deadline has passed the pool reclaims the connection (cancelling whatever is still running) and no more
+	 * statements can be created.
+	 * Throws IllegalStateException if no connection became available before the deadline. */
+	public Connection getConnectionUntil(ConnectionPriority priority, long deadlineNanoTime) throws SQLException {
+		return getConnectionUntil(null, priority, deadlineNanoTime);
+	}
+
+	/* As getConnectionUntil(priority, deadlineNanoTime), on behalf of the tenant. Inside withConnection the connection
+	 * bound to the thread is returned instead, without a deadline. */
+	public Connection getConnectionUntil(String tenant, ConnectionPriority priority, long deadlineNanoTime) throws SQLException {
+		ConnectionScope scope = boundScope.get();
+		if(scope != null){
+			return referenceScope(scope);
+		}
+		return borrow(tenant, priority, System.nanoTime(), deadlineNanoTime, true);
+	}
+
+	/* Runs the work with a NORMAL priority connection bound to the thread, waiting for none if the pool is empty. */
+	public <T> T withConnection(ConnectionWork<T> work) throws SQLException {
+		return withConnection(null, ConnectionPriority.NORMAL, 0, TimeUnit.MILLISECONDS, work);
+	}
+
+	/* Runs the work with a connection bound to the thread. getConnection calls made on the thread while the work runs
+	 * return the same connection, and releasing or closing it inside the work leaves it with the scope.
+	 * The connection is borrowed (as getConnection would) by the outermost withConnection only and is released when
+	 * that one returns. Nested withConnection calls just run their work on the bound connection. */
+	public <T> T withConnection(String tenant, ConnectionPriority priority, long timeout, TimeUnit unit,
+			ConnectionWork<T> work) throws SQLException {
+		ConnectionScope scope = boundScope.get();
+		boolean outermost = scope == null;
+		if(outermost){
+			long borrowStartNanos = System.nanoTime();
+			OConnection connection = (OConnection) borrow(tenant, priority, borrowStartNanos,
+					borrowStartNanos + unit.toNanos(timeout), false);
+			scope = new ConnectionScope(connection, Thread.currentThread());
+			connection.scope = scope;
+			boundScope.set(scope);
+		} else {
+			referenceScope(scope);
+		}
+		try {
+			return work.execute(scope.connection);
+		} finally {
+			if(outermost){
+				boundScope.remove();
+				scope.connection.scope = null;
+				if(scope.references > 1){
+					log.debug((scope.references - 1) + " references to connection " + scope.connection.getConnectionId()
+							+ " were not released before its scope ended.");
+				}
+				releaseConnection(scope.connection);
+			} else {
+				scope.references--;
+			}
+		}
+	}
+
+	/* Hands out another reference to the connection bound to the thread.
+	 * Throws IllegalStateException if the pool has reclaimed it as abandoned in the meantime. */
+	private OConnection referenceScope(ConnectionScope scope) {
+		if(scope.connection.isStale()){
+			throw new IllegalStateException("The connection bound to this thread has been reclaimed by the pool.");
+		}
+		scope.references++;
+		return scope.connection;
+	}
+
+	/* Drops a reference to the connection if it is bound to a scope. Returns true if it was, in which case the connection
+	 * stays with the scope. The scope is the one the handle belongs to rather than the calling thread's, so a bound
+	 * handle released from another thread also stays with its scope; only the owning thread drops a reference. */
+	private boolean releaseScopeReference(OConnection connection) {
+		ConnectionScope scope = connection.scope;
+		if(scope == null){
+			return false;
+		}
+		if(scope.owner == Thread.currentThread() && scope.references > 1){
+			scope.references--;
+		}
+		return true;
+	}
+
+	/* Runs a read-only query the caller has marked as cacheable and returns all of its rows. While an earlier result
+	 * of the same SQL with equal parameters is still fresh it is returned without borrowing a connection, else a
+	 * NORMAL priority connection is borrowed to run the query, waiting up to datasource.resultCache.borrowTimeoutInMillis
+	 * for one as a borrower would, and the result is cached.
+	 * Concurrent misses for the same query each run it. */
+	public CachedResult queryCached(String sql, Object... parameters) throws SQLException {
+		return queryCached(null, sql, parameters);
+	}
+
+	/* Serves the query from the cache, else runs it on the given connection (or a borrowed one if null) and caches it. */
+	CachedResult queryCached(Connection connection, String sql, Object[] parameters) throws SQLException {
+		long maxBytes = ds.resultCacheMaxBytes;
+		ResultCache.Key key = new ResultCache.Key(sql, parameters);
+		if(maxBytes > 0){
+			CachedResult cachedResult = resultCache.get(key);
+			if(cachedResult != null){
+				return cachedResult;
+			}
+		}
+		long cacheGeneration = resultCache.getGeneration();
+		CachedResult result;
+		if(connection != null){
+			result = fetch(connection, key);
+		} else {
+			Connection borrowedConnection = getConnection(ConnectionPriority.NORMAL, ds.resultCacheBorrowTimeoutInMillis,
+					TimeUnit.MILLISECONDS);
+			try {
+				result = fetch(borrowedConnection, key);
+			} finally {
+				releaseConnection(borrowedConnection);
+			}
+		}
+		if(maxBytes > 0){
+			resultCache.put(key, result, cacheGeneration, maxBytes, TimeUnit.SECONDS.toNanos(ds.resultCacheTimeToLiveInSeconds));
+		}
+		return result;
+	}
+
+	/* Runs the query on the connection and reads all of its rows. */
+	static CachedResult fetch(Connection connection, ResultCache.Key key) throws SQLException {
+		PreparedStatement statement = connection.prepareStatement(key.sql);
+		try {
+			for(int i = 0; i < key.parameters.length; i++){
+				statement.setObject(i + 1, key.parameters[i]);
+			}
+			ResultSet resultSet = statement.executeQuery();
+			try {
+				return CachedResult.materialize(resultSet);
+			} finally {
+				resultSet.close();
+			}
+		} finally {
+			statement.close();
+		}
+	}
+
+	/* Drops every cached query result, e.g. after the reference data they were read from changed. */
+	public void invalidateResultCache() {
+		resultCache.invalidate();
+	}
+
+	/* Returns the result cache's hit rate and memory use. */
+	public ResultCacheStatistics getResultCacheStatistics() {
+		return resultCache.getStatistics();
+	}
+
+	/* Borrows a connection as described for getConnection, bypassing any scope bound to the thread. Gives up waiting at
+	 * the deadline and, if enforceDeadline is set, also holds the borrow to it (see getConnectionUntil). */
+	private Connection borrow(String tenant, ConnectionPriority priority, long borrowStartNanos, long deadlineNanos,
+			boolean enforceDeadline) throws SQLException {
+		ConnectionBorrowEvent borrowEvent = new ConnectionBorrowEvent();
+		borrowEvent.begin();
+		TenantBulkhead tenantBulkhead = tenant == null ? null : acquireTenantPermit(tenant, deadlineNanos);
+		PooledConnection pooledConnection;
+		try {
+			pooledConnection = acquire(priority, tenantBulkhead, deadlineNanos - System.nanoTime(), borrowStartNanos);
+		} catch (SQLException e) {
+			if(tenantBulkhead != null){
+				tenantBulkhead.release();
+			}
+			throw e;
+		} catch (RuntimeException e) {
+			if(tenantBulkhead != null){
+				tenantBulkhead.release();
+			}
+			throw e;
+		}
+		if(enforceDeadline){
+			pooledConnection.setDeadline(deadlineNanos);
+		}
+		OConnection connectionToReturn = new OConnection(pooledConnection, this);
+		if(ds.streamingFetchSize > 0){
+			connectionToReturn.setStreamingFetchSize(ds.streamingFetchSize);
+		}
+
+		borrowEvent.end();
+		if(borrowEvent.shouldCommit()){
+			borrowEvent.connectionId = pooledConnection.id;
+			borrowEvent.priority = priority.name();
+			borrowEvent.waitTime = pooledConnection.borrowedAtNanos - borrowStartNanos;
+			borrowEvent.availableConnections = getNumberOfAvailableConnections();
+			borrowEvent.commit();
+		}
+		publish(ConnectionPoolEventRing.BORROWED, pooledConnection.id, pooledConnection.borrowedAtNanos - borrowStartNanos, false, null);
+		if(telemetry != null){
+			telemetry.recordBorrow(pooledConnection.borrowedAtNanos - borrowStartNanos);
+		}
 		return connectionToReturn;
 	}
 
-	/* Schedules a releaseOnAbandonmentTask and Inserts the corresponding releaseOnAbandonmentHandle into the map. 
-	 * releaseOnAbandonmentHandle is used to reset the  task when any activity is detected on the borrowed connection. */
-	private void addNewReleaseOnAbandonmentHandleToMap(Connection connectionBeingScheduled) {
-		Callable<?> releaseOnAbandonmentTask = getReleaseOnAbandonmentTask(connectionBeingScheduled, this);
-		final ScheduledFuture<?> releaseOnAbandonmentHandle =
-	            scheduler.schedule(releaseOnAbandonmentTask, ds.maxIdleTimeInSeconds, TimeUnit.SECONDS);
-		releaseOnAbandonmentTaskMap.put(connectionBeingScheduled, releaseOnAbandonmentHandle);
-		return;
+	/* Takes a permit from the tenant's bulkhead, waiting until the deadline if the tenant is at its limit.
+	 * A bulkhead retired by the eviction between being looked up and used is simply replaced with a fresh one. */
+	private TenantBulkhead acquireTenantPermit(String tenant, long deadlineNanos) throws SQLException {
+		while(true){
+			TenantBulkhead tenantBulkhead = tenantBulkheads.get(tenant);
+			if(tenantBulkhead == null){
+				TenantBulkhead newTenantBulkhead = new TenantBulkhead(tenant);
+				tenantBulkhead = tenantBulkheads.putIfAbsent(tenant, newTenantBulkhead);
+				if(tenantBulkhead == null){
+					tenantBulkhead = newTenantBulkhead;
+				}
+			}
+			int outcome;
+			try {
+				outcome = tenantBulkhead.acquire(ds.tenantMaxConnections, ds.tenantMaxWaiters, deadlineNanos);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for a connection.");
+			}
+			if(outcome == TenantBulkhead.ACQUIRED){
+				return tenantBulkhead;
+			}
+			tenantBulkheads.remove(tenant, tenantBulkhead);
+		}
 	}
-	
-	/* Utility method that returns the task being scheduled by the scheduler. 
-	 * This task is executed when a connection is deemed as abandoned. The task essentially
-	 * removes the handler from the map and reinserts the abandoned connection back into the pool. */
-	private Callable<?> getReleaseOnAbandonmentTask(final Connection connectionToReturn, final ConnectionPool connectionPoolInstance){
-		return new Callable<Object>() {
-            public Object call() throws SQLException {
-            	releaseOnAbandonmentTaskMap.remove(connectionToReturn);
-            	OConnection oConnection = new OConnection(((OConnection)connectionToReturn)._connection, connectionPoolInstance);
-            	((OConnection)connectionToReturn)._connection = null;
-            	connectionList.add(oConnection);
-            	return null;
-            }
+
+	/* Forgets the bulkheads of tenants that have had nothing borrowed for datasource.tenant.evictAfterIdleSeconds.
+	 * Rate limited since it is invoked from the frequent abandonment sweep. */
+	private void evictQuietTenants() {
+		long now = System.nanoTime();
+		if(now - lastTenantEvictionNanos < TENANT_EVICTION_INTERVAL_IN_NANOS){
+			return;
+		}
+		lastTenantEvictionNanos = now;
+		long quietSinceNanos = now - TimeUnit.SECONDS.toNanos(ds.tenantEvictAfterIdleSeconds);
+		for(TenantBulkhead tenantBulkhead : tenantBulkheads.values()){
+			if(tenantBulkhead.retireIfQuiet(quietSinceNanos)){
+				tenantBulkheads.remove(tenantBulkhead.tenant, tenantBulkhead);
+			}
+		}
+	}
+
+	/* Returns the number of connections the tenant currently has borrowed. */
+	public int getTenantBorrowedConnections(String tenant) {
+		TenantBulkhead tenantBulkhead = tenantBulkheads.get(tenant);
+		return tenantBulkhead == null ? 0 : tenantBulkhead.getBorrowedConnections();
+	}
+
+	/* Returns the number of the tenant's borrowers turned away for exceeding its limits since it was last evicted. */
+	public long getTenantRejections(String tenant) {
+		TenantBulkhead tenantBulkhead = tenantBulkheads.get(tenant);
+		return tenantBulkhead == null ? 0 : tenantBulkhead.rejectionCount.sum();
+	}
+
+	/* returns the number of tenants currently tracked. */
+	int getNumberOfTrackedTenants() {
+		return tenantBulkheads.size();
+	}
+
+	/* Takes an idle connection for the lane if it may have one now, else queues the borrower and waits for
+	 * dispatchToWaiters to hand it one. The connection is charged to the tenant's bulkhead, if any, until the borrow ends. */
+	private PooledConnection acquire(ConnectionPriority priority, TenantBulkhead tenantBulkhead, long timeoutNanos,
+			long borrowStartNanos) throws SQLException {
+		Waiter waiter;
+		synchronized(this){
+			if(closing){
+				throw new IllegalStateException("The pool has been closed.");
+			}
+			if(canBorrow(priority)){
+				PooledConnection pooledConnection = connectionList.pollFirst();
+				startBorrow(pooledConnection, priority, tenantBulkhead);
+				lanes[priority.ordinal()].recordBorrow(0);
+				return pooledConnection;
+			}
+			if(timeoutNanos <= 0){
+				throw new IllegalStateException("Connection Pool Currently Empty.");
+			}
+			waiter = new Waiter(priority, tenantBulkhead, borrowStartNanos);
+			waiters.add(waiter);
+			lanes[priority.ordinal()].waitingBorrowers++;
+		}
+		return await(waiter, borrowStartNanos + timeoutNanos);
+	}
+
+	/* Waits on the waiter's own monitor (never while holding the pool's) until a connection is handed to it or the
+	 * deadline passes. A connection handed over just as the wait timed out is still taken. */
+	private PooledConnection await(Waiter waiter, long deadlineNanos) throws SQLException {
+		boolean interrupted = false;
+		synchronized(waiter){
+			while(waiter.assigned == null && !closing){
+				long remainingNanos = deadlineNanos - System.nanoTime();
+				if(remainingNanos <= 0){
+					break;
+				}
+				try {
+					TimeUnit.NANOSECONDS.timedWait(waiter, remainingNanos);
+				} catch (InterruptedException e) {
+					interrupted = true;
+					break;
+				}
+			}
+		}
+		PriorityLane lane = lanes[waiter.priority.ordinal()];
+		synchronized(this){
+			if(waiter.assigned == null){
+				waiters.remove(waiter);
+				lane.waitingBorrowers--;
+				if(closing && !interrupted){
+					throw new IllegalStateException("The pool has been closed.");
+				}
+				lane.timeoutCount++;
+				if(interrupted){
+					Thread.currentThread().interrupt();
+					throw new SQLException("Interrupted while waiting for a connection.");
+				}
+				throw new IllegalStateException("Timed out waiting for a " + waiter.priority + " priority connection.");
+			}
+			lane.recordBorrow(waiter.assigned.borrowedAtNanos - waiter.enqueuedAtNanos);
+		}
+		if(interrupted){
+			Thread.currentThread().interrupt();
+		}
+		return waiter.assigned;
+	}
+
+	/* Returns true if the lane may take an idle connection now: it is below its cap and taking one leaves enough idle
+	 * connections for the other lanes that are short of their reservation. Must hold the pool's monitor. */
+	private boolean canBorrow(ConnectionPriority priority) {
+		if(connectionList.isEmpty()){
+			return false;
+		}
+		int laneIndex = priority.ordinal();
+		int[] laneReservedConnections = ds.laneReservedConnections;
+		if(lanes[laneIndex].activeConnections >= ds.laneMaxConnections[laneIndex]){
+			return false;
+		}
+		int reservedForOtherLanes = 0;
+		for(int i = 0; i < lanes.length; i++){
+			if(i != laneIndex){
+				reservedForOtherLanes += Math.max(0, laneReservedConnections[i] - lanes[i].activeConnections);
+			}
+		}
+		return connectionList.size() > reservedForOtherLanes;
+	}
+
+	/* Hands idle connections to waiting borrowers, most urgent first, for as long as there are idle connections and
+	 * waiters whose lane may take one. Invoked whenever a connection becomes idle or a lane frees up capacity.
+	 * Must hold the pool's monitor. */
+	private void dispatchToWaiters() {
+		while(!connectionList.isEmpty() && !waiters.isEmpty()){
+			long now = System.nanoTime();
+			long agingIntervalNanos = Math.max(1, TimeUnit.MILLISECONDS.toNanos(ds.laneAgingIntervalInMillis));
+			Waiter mostUrgent = null;
+			long mostUrgentRank = Long.MAX_VALUE;
+			for(int i = 0; i < waiters.size(); i++){
+				Waiter waiter = waiters.get(i);
+				long rank = waiter.priority.ordinal() - (now - waiter.enqueuedAtNanos) / agingIntervalNanos;
+				if(rank < mostUrgentRank && canBorrow(waiter.priority)){
+					mostUrgent = waiter;
+					mostUrgentRank = rank;
+				}
+			}
+			if(mostUrgent == null){
+				return;
+			}
+			waiters.remove(mostUrgent);
+			lanes[mostUrgent.priority.ordinal()].waitingBorrowers--;
+			PooledConnection pooledConnection = connectionList.pollFirst();
+			startBorrow(pooledConnection, mostUrgent.priority, mostUrgent.tenantBulkhead);
+			synchronized(mostUrgent){
+				mostUrgent.assigned = pooledConnection;
+				mostUrgent.notify();
+			}
+		}
+	}
+
+	/* Marks the connection as borrowed through the lane (and tenant). Must hold the pool's monitor. */
+	private void startBorrow(PooledConnection pooledConnection, ConnectionPriority priority, TenantBulkhead tenantBulkhead) {
+		pooledConnection.borrowed = true;
+		pooledConnection.priority = priority;
+		pooledConnection.tenantBulkhead = tenantBulkhead;
+		pooledConnection.borrowedAtNanos = System.nanoTime();
+		pooledConnection.lastActivityNanos = pooledConnection.borrowedAtNanos;
+		lanes[priority.ordinal()].activeConnections++;
+	}
+
+	/* Ends the borrow, invalidating its handle and freeing up the lane and tenant. Must hold the pool's monitor. */
+	private void endBorrow(PooledConnection pooledConnection) {
+		pooledConnection.endBorrow();
+		lanes[pooledConnection.priority.ordinal()].activeConnections--;
+		if(pooledConnection.tenantBulkhead != null){
+			pooledConnection.tenantBulkhead.release();
+			pooledConnection.tenantBulkhead = null;
+		}
+	}
+
+	/* Returns a snapshot of the borrowing activity of the given priority's lane. */
+	public synchronized LaneStatistics getLaneStatistics(ConnectionPriority priority) {
+		return lanes[priority.ordinal()].snapshot();
+	}
+
+	/* A borrower waiting for a connection. assigned is written under both the pool's and the waiter's monitor. */
+	private static final class Waiter {
+		final ConnectionPriority priority;
+		final TenantBulkhead tenantBulkhead;
+		final long enqueuedAtNanos;
+		PooledConnection assigned;
+
+		Waiter(ConnectionPriority priority, TenantBulkhead tenantBulkhead, long enqueuedAtNanos){
+			this.priority = priority;
+			this.tenantBulkhead = tenantBulkhead;
+			this.enqueuedAtNanos = enqueuedAtNanos;
+		}
+	}
+
+	/* Utility method that returns the task being scheduled by the scheduler.
+	 * The task sweeps the borrowed connections and reinserts the ones that have been idle for longer than the
+	 * max idle time back into the pool. Reinserting ends the borrow, so the abandoned handle becomes stale. */
+	private static ReleaseOnAbandonmentTask getReleaseOnAbandonmentTask(OConnectionPoolImpl connectionPoolInstance,
+			ScheduledExecutorService scheduler){
+		return new ReleaseOnAbandonmentTask(connectionPoolInstance, scheduler);
+	}
+
+	/* The periodic abandonment sweep. Only weakly references the pool so that the scheduled task does not keep an
+	 * otherwise unreachable pool alive. Should a pool be collected without having been closed, the task stops the
+	 * scheduler so that at least its threads do not leak. */
+	private static class ReleaseOnAbandonmentTask implements Runnable {
+		private final WeakReference<OConnectionPoolImpl> connectionPoolReference;
+		private final ScheduledExecutorService scheduler;
+		private volatile ScheduledFuture<?> handle;
+
+		ReleaseOnAbandonmentTask(OConnectionPoolImpl connectionPoolInstance, ScheduledExecutorService scheduler){
+			this.connectionPoolReference = new WeakReference<OConnectionPoolImpl>(connectionPoolInstance);
+			this.scheduler = scheduler;
+		}
+
+		public void run() {
+			OConnectionPoolImpl connectionPoolInstance = connectionPoolReference.get();
+			if(connectionPoolInstance == null){
+				if(handle != null){
+					handle.cancel(false);
+				}
+				scheduler.shutdown();
+				return;
+			}
+			try {
+				connectionPoolInstance.releaseAbandonedConnections();
+				connectionPoolInstance.evictQuietTenants();
+				connectionPoolInstance.sampleTelemetry();
+			} catch (RuntimeException e) {
+				//Swallowing so that a single failure does not cancel the periodic sweep.
+				connectionPoolInstance.log.error("Abandoned connection sweep failed. " + e.getMessage());
+			}
+		}
+	}
+
+	/* Ends the borrow of every connection whose idle time has surpassed the max idle time, or whose deadline has passed,
+	 * and hands it to the scheduler to be quarantined. Connections their borrower is already releasing are skipped.
+	 * The reclaimed connection is neither idle nor borrowed until quarantine completes. The listeners are told once the
+	 * pool's monitor has been left. */
+	private void releaseAbandonedConnections() {
+		List<long[]> reclaimed = reclaimAbandonedConnections();
+		for(int i = 0; i < reclaimed.size(); i++){
+			long[] abandoned = reclaimed.get(i);
+			publish(ConnectionPoolEventRing.ABANDONED, abandoned[0], abandoned[1], false, null);
+		}
+	}
+
+	/* Does the work of releaseAbandonedConnections under the pool's monitor. Returns the id and hold time of every
+	 * connection it reclaimed. */
+	private synchronized List<long[]> reclaimAbandonedConnections() {
+		List<long[]> reclaimed = new ArrayList<long[]>(0);
+		long now = System.nanoTime();
+		long maxIdleTimeInNanos = TimeUnit.SECONDS.toNanos(ds.maxIdleTimeInSeconds);
+		for(int i = 0; i < allConnections.size(); i++){
+			PooledConnection pooledConnection = allConnections.get(i);
+			boolean deadlinePassed = pooledConnection.borrowed && pooledConnection.isPastDeadline(now);
+			boolean idleTooLong = now - pooledConnection.lastActivityNanos >= maxIdleTimeInNanos;
+			if(pooledConnection.borrowed && !pooledConnection.releasing && (deadlinePassed || idleTooLong)){
+				ConnectionAbandonedEvent abandonedEvent = new ConnectionAbandonedEvent();
+				if(abandonedEvent.isEnabled()){
+					abandonedEvent.connectionId = pooledConnection.id;
+					abandonedEvent.holdTime = now - pooledConnection.borrowedAtNanos;
+					abandonedEvent.commit();
+				}
+				reclaimed.add(new long[]{pooledConnection.id, now - pooledConnection.borrowedAtNanos});
+				if(log.isDebugEnabled()){
+					log.debug("Connection " + pooledConnection.id + (deadlinePassed ? " passed its borrower's deadline"
+							: " was abandoned") + " and has been reclaimed.");
+				}
+				endBorrow(pooledConnection);
+				runInBackground(getQuarantineTask(pooledConnection));
+			}
+		}
+		//Reclaiming frees up lanes that may have been at their cap.
+		dispatchToWaiters();
+		if(ds.failoverDetection){
+			//Retries the connections that could not be opened while the database was away.
+			topUpPool();
+		}
+		return reclaimed;
+	}
+
+	/* Utility method that returns the task that quarantines a reclaimed connection. */
+	private Runnable getQuarantineTask(final PooledConnection pooledConnection){
+		return new Runnable() {
+			public void run() {
+				try {
+					quarantine(pooledConnection);
+				} catch (RuntimeException e) {
+					log.error("Quarantine of connection " + pooledConnection.id + " failed. " + e.getMessage());
+				}
+			}
+		};
+	}
+
+	/* Makes a reclaimed connection safe to lend out again. Cancels the statements the abandoning borrower may still have
+	 * running, rolls back any open transaction and validates the connection before it re-enters the pool, so the next
+	 * borrower neither blocks behind that work nor inherits the transaction. A connection that fails any of this is
+	 * closed and replaced. The warm statements are only given back once that is done. Runs on the scheduler, off the
+	 * borrow path. */
+	private void quarantine(PooledConnection pooledConnection) {
+		pooledConnection.cancelStatements();
+		boolean valid;
+		try {
+			Connection connection = pooledConnection.connection;
+			if(!connection.getAutoCommit()){
+				connection.rollback();
+				connection.setAutoCommit(true);
+			}
+			valid = validate(pooledConnection);
+		} catch (SQLException e) {
+			log.debug("Connection " + pooledConnection.id + " could not be reset after abandonment. " + e.getMessage());
+			reportFailure(pooledConnection, e);
+			valid = false;
+		}
+		pooledConnection.reclaimWarmStatements();
+		if(valid){
+			returnToPool(pooledConnection);
+		} else {
+			retireConnection(pooledConnection, "failed validation after abandonment");
+		}
+	}
+
+	/* Checks the physical connection is still usable, reporting the check as a ConnectionValidationEvent. */
+	private boolean validate(PooledConnection pooledConnection) {
+		ConnectionValidationEvent validationEvent = new ConnectionValidationEvent();
+		validationEvent.begin();
+		boolean valid;
+		try {
+			valid = pooledConnection.connection.isValid(ds.validationTimeoutInSeconds);
+		} catch (SQLException e) {
+			valid = false;
+		}
+		validationEvent.end();
+		if(validationEvent.shouldCommit()){
+			validationEvent.connectionId = pooledConnection.id;
+			validationEvent.valid = valid;
+			validationEvent.commit();
+		}
+		return valid;
+	}
+
+	/* Returns true if fatal failures on connections fail the pool over. */
+	boolean isDetectingFailover() {
+		return ds.failoverDetection;
+	}
+
+	/* Invoked with the failures seen on borrowed connections. If failover detection is on and the failure is fatal,
+	 * fails the pool over: the epoch is moved on so every connection opened before is retired (idle ones now, borrowed
+	 * ones when released) and their replacements are opened in parallel on the scheduler. Only failures on connections
+	 * of the current epoch count, so the many borrowers hitting the same outage fail the pool over once. */
+	void reportFailure(PooledConnection pooledConnection, SQLException failure) {
+		if(!ds.failoverDetection || !FailoverDetection.isFatal(failure)){
+			return;
+		}
+		int evictedConnections = 0;
+		synchronized(this){
+			if(pooledConnection.epoch != connectionEpoch){
+				return;
+			}
+			connectionEpoch++;
+			failovers++;
+			while(!connectionList.isEmpty()){
+				PooledConnection idleConnection = connectionList.pollFirst();
+				allConnections.remove(idleConnection);
+				runInBackground(getCloseTask(idleConnection, "failed over"));
+				evictedConnections++;
+			}
+			topUpPool();
+		}
+		log.error("Connection " + pooledConnection.id + " failed with SQLState " + failure.getSQLState()
+				+ ". Failing over: closed " + evictedConnections + " idle connections and reconnecting.");
+	}
+
+	/* Records a telemetry sample if a second has passed since the last one. Only invoked by the abandonment sweep. */
+	private void sampleTelemetry() {
+		long now = System.nanoTime();
+		if(telemetry == null || now - lastTelemetrySampleNanos < TELEMETRY_INTERVAL_IN_NANOS){
+			return;
+		}
+		lastTelemetrySampleNanos = now;
+		int idle, active, waiting;
+		synchronized(this){
+			idle = connectionList.size();
+			active = allConnections.size() - idle;
+			waiting = waiters.size();
+		}
+		telemetry.sample(idle, active, waiting);
+	}
+
+	/* Returns the telemetry samples in the window, oldest first. Empty if telemetry is disabled. */
+	public PoolTelemetryHistory getTelemetry() {
+		return telemetry == null ? new PoolTelemetryHistory(0) : telemetry.getHistory();
+	}
+
+	/* Writes the telemetry samples in the window to the file as CSV, for a post-mortem. */
+	public void dumpTelemetry(File file) throws IOException {
+		getTelemetry().writeCsv(file);
+	}
+
+	/* Registers a listener for the pool's events (see ConnectionPoolListener). */
+	public void addListener(ConnectionPoolListener listener) {
+		events.addListener(listener);
+	}
+
+	public void removeListener(ConnectionPoolListener listener) {
+		events.removeListener(listener);
+	}
+
+	/* Returns the number of events the listeners missed because they fell behind with the buffer full. */
+	public long getDroppedEvents() {
+		return events.getDroppedEvents();
+	}
+
+	/* Hands an event to the listeners, if there are any. With datasource.listener.blockWhenFull it may wait for the
+	 * dispatcher, whose listeners may call back into the pool, so the pool publishes after leaving its monitor. A close
+	 * run inline under the monitor once the scheduler has stopped drops its event when the buffer is full instead. */
+	private void publish(int type, long connectionId, long duration, boolean flag, String reason) {
+		events.publish(type, connectionId, duration, flag, reason, ds.listenerBlockWhenFull && !Thread.holdsLock(this));
+	}
+
+	/* Returns the number of times the pool has failed over. */
+	public synchronized long getNumberOfFailovers() {
+		return failovers;
+	}
+
+	/* Puts a connection that is not borrowed back into the pool, unless the pool has been reconfigured since it was
+	 * opened such that it is no longer wanted (outdated url/credentials or the pool has shrunk), in which case it is retired. */
+	private synchronized void returnToPool(PooledConnection pooledConnection) {
+		if(closing){
+			retireConnection(pooledConnection, "pool closed");
+		} else if(pooledConnection.epoch != connectionEpoch){
+			retireConnection(pooledConnection, "opened with outdated configuration");
+		} else if(allConnections.size() > ds.poolSize){
+			retireConnection(pooledConnection, "pool shrunk");
+		} else {
+			connectionList.addLast(pooledConnection);
+			dispatchToWaiters();
+		}
+	}
+
+	/* Removes a connection from the pool, closes it in the background and tops the pool back up to its size. */
+	private synchronized void retireConnection(PooledConnection pooledConnection, String reason) {
+		if(!allConnections.remove(pooledConnection) && closing){
+			//Already closed by drain.
+			return;
+		}
+		runInBackground(getCloseTask(pooledConnection, reason));
+		topUpPool();
+		if(closing){
+			//A drain may be waiting for the connection to come back.
+			notifyAll();
+		}
+	}
+
+	/* Opens, in the background, as many connections as the pool is short of its configured size. */
+	private synchronized void topUpPool() {
+		if(closing){
+			return;
+		}
+		int missingConnections = ds.poolSize - allConnections.size() - pendingConnections;
+		for(int i = 0; i < missingConnections; i++){
+			pendingConnections++;
+			runInBackground(getCreateTask());
+		}
+	}
+
+	/* Runs the task on the scheduler, or right away if the scheduler has already been shut down by close. */
+	private void runInBackground(Runnable task) {
+		try {
+			scheduler.execute(task);
+		} catch (RejectedExecutionException e) {
+			task.run();
+		}
+	}
+
+	/* Utility method that returns the task that opens a connection and puts it in the pool. */
+	private Runnable getCreateTask(){
+		return new Runnable() {
+			public void run() {
+				PooledConnection pooledConnection = null;
+				try {
+					pooledConnection = createConnection();
+				} catch (RuntimeException e) {
+					log.error("Unable to open a connection for the pool. " + e.getMessage());
+				}
+				synchronized(OConnectionPoolImpl.this){
+					pendingConnections--;
+					if(pooledConnection != null){
+						returnToPool(pooledConnection);
+					}
+				}
+			}
+		};
+	}
+
+	/* Utility method that returns the task that closes a physical connection the pool no longer owns. */
+	private Runnable getCloseTask(final PooledConnection pooledConnection, final String reason){
+		return new Runnable() {
+			public void run() {
+				try {
+					pooledConnection.connection.close();
+				} catch (SQLException e) {
+					log.debug("Connection " + pooledConnection.id + " could not be closed. " + e.getMessage());
+				}
+				connectionClosed(pooledConnection.id, reason);
+			}
+		};
+	}
+
+	/* Utility method that returns the task that rolls an idle connection opened under an outdated epoch over to a new
+	 * one. The new connection is opened first so borrowers never find the pool short. If the outdated connection was
+	 * borrowed in the meantime it is retired when it is released instead. */
+	private Runnable getRollTask(final PooledConnection outdatedConnection){
+		return new Runnable() {
+			public void run() {
+				PooledConnection replacement;
+				try {
+					replacement = createConnection();
+				} catch (RuntimeException e) {
+					log.error("Unable to roll connection " + outdatedConnection.id + ". " + e.getMessage());
+					return;
+				}
+				synchronized(OConnectionPoolImpl.this){
+					if(connectionList.remove(outdatedConnection)){
+						allConnections.remove(outdatedConnection);
+						runInBackground(getCloseTask(outdatedConnection, "opened with outdated configuration"));
+					}
+					if(closing){
+						retireConnection(replacement, "pool closed");
+					} else if(replacement.epoch != connectionEpoch){
+						//The pool failed over while the replacement was being opened.
+						retireConnection(replacement, "opened with outdated configuration");
+					} else {
+						connectionList.addLast(replacement);
+						dispatchToWaiters();
+					}
+				}
+			}
 		};
 	}
 
-	/* If the connection that is passed in is already closed, it creates a new connection to reinsert in pool.
-	 * Else extracts the physical connection from the wrapper and reinserts it with a new wrapper in the pool.
-	 * The old wrappers physical connection is nullified. 
-	 * 
-	 * Creating/deleting Wrapper connections is not expensive as the physical connection is always 
-	 * extracted out (unless it was closed by the client).
-	 * 
+	/* If the connection that is passed in is already closed, a new connection is opened (and warmed up) in the
+	 * background to take its place, so the releasing thread is not held up by it.
+	 * Else ends the borrow, which makes the handle stale, and reinserts the physical connection in the pool.
+	 *
+	 * No wrapper is created or discarded on release. The PooledConnection is reused for the next borrower
+	 * (unless the physical connection was closed by the client).
+	 *
+	 * Releasing the connection bound to the thread by withConnection only drops a reference to it.
+	 *
+	 * Any writes held back by batch coalescing are executed first and the statements the borrower left open are closed,
+	 * outside the pool's monitor. The borrow is marked as being released
+	 * first, so it cannot be reclaimed and lent to another borrower while that runs. The connection is released even if
+	 * they fail, in which case the failure is thrown afterwards.
+	 *
 	 * Since its idempotent, multiple invocations can easily corrupt the pool. Hence, synchronizing to ensure the
 	 * connection is returned to the pool only once.
 	 */
 	@Override
-	public synchronized void releaseConnection(Connection connection) throws SQLException, IllegalStateException {
-		Connection oConnectionToBeInserted = null;
-		if(connection != null && connectionList.size() < ds.poolSize){
+	public void releaseConnection(Connection connection) throws SQLException, IllegalStateException {
+		if(connection instanceof OConnection){
+			OConnection oConnectionToBeReleased = (OConnection) connection;
+			if(releaseScopeReference(oConnectionToBeReleased)){
+				log.debug("This connection is bound to the thread and is released when its scope ends.");
+				return;
+			}
+			if(!oConnectionToBeReleased.isStale()){
+				if(!beginRelease(oConnectionToBeReleased)){
+					log.debug("This connection has already been released or is being released.");
+					return;
+				}
+				PooledConnection pooledConnection = oConnectionToBeReleased.pooledConnection;
+				try {
+					oConnectionToBeReleased.endBatchCoalescing();
+				} finally {
+					closeLeftOpenStatements(oConnectionToBeReleased);
+					//Read before the connection can be lent to anyone else, the listeners are told after leaving the monitor.
+					long borrowedAtNanos = pooledConnection.borrowedAtNanos;
+					boolean closedOnRelease = release(connection);
+					if(closedOnRelease){
+						publish(ConnectionPoolEventRing.DESTROYED, pooledConnection.id, 0, false, "closed by client");
+					}
+					commitReleaseEvent(pooledConnection.id, borrowedAtNanos, pooledConnection.closedByClient);
+				}
+				return;
+			}
+		}
+		release(connection);
+	}
+
+	/* Marks the borrow as being released, so the abandonment sweep leaves it alone while the release cleans up outside
+	 * the monitor. Returns false if the borrow has already ended or another release of it is under way. */
+	private synchronized boolean beginRelease(OConnection connection) {
+		PooledConnection pooledConnection = connection.pooledConnection;
+		if(connection.isStale() || pooledConnection.releasing){
+			return false;
+		}
+		pooledConnection.releasing = true;
+		return true;
+	}
+
+	/* Closes the statements the borrower of the connection left open, counting them and warning about them if
+	 * datasource.statements.warnOnLeak is set. */
+	private void closeLeftOpenStatements(OConnection connection) {
+		int leftOpen = connection.closeLeftOpenStatements();
+		if(leftOpen > 0){
+			leakedStatements.add(leftOpen);
+			if(ds.warnOnStatementLeaks){
+				log.warn("Connection " + connection.getConnectionId() + " was released with " + leftOpen
+						+ " statements still open. They have been closed.");
+			}
+		}
+	}
+
+	/* Returns the number of statements borrowers left open that were closed when their connection was released. */
+	public long getLeakedStatements() {
+		return leakedStatements.sum();
+	}
+
+	/* Returns the connection to the pool as described for releaseConnection. Returns true if the connection was found
+	 * closed and dropped from the pool instead. */
+	private synchronized boolean release(Connection connection) throws SQLException, IllegalStateException {
+		PooledConnection pooledConnectionToBeInserted = null;
+		if(connection != null){
 			if(connection instanceof OConnection){
 				OConnection oConnectionToBeReleased = (OConnection) connection;
-				if(oConnectionToBeReleased._connection == null){
+				PooledConnection pooledConnection = oConnectionToBeReleased.pooledConnection;
+				if(oConnectionToBeReleased.isStale()){
 					log.debug("This connection has already been released.");
-				} else if(oConnectionToBeReleased.isClosed()){
+				} else if(isClosedOnRelease(oConnectionToBeReleased)){
 					log.debug("This connection has already been closed but not released.");
-					oConnectionToBeInserted = createConnection();
-					oConnectionToBeReleased._connection = null;
+					endBorrow(pooledConnection);
+					pooledConnection.reclaimWarmStatements();
+					pooledConnection.clearStatements();
+					allConnections.remove(pooledConnection);
+					topUpPool();
+					if(closing){
+						notifyAll();
+					}
+					return true;
 				} else {
 					log.debug("This connection has not been closed. And releaseConnection has now been invoked.");
-					oConnectionToBeInserted = new OConnection(oConnectionToBeReleased._connection, this);
-					oConnectionToBeReleased._connection = null;
+					endBorrow(pooledConnection);
+					pooledConnection.reclaimWarmStatements();
+					pooledConnection.clearStatements();
+					pooledConnectionToBeInserted = pooledConnection;
+				}
+				if(pooledConnectionToBeInserted != null){
+					returnToPool(pooledConnectionToBeInserted);
 				}
 			} else {
-				throw new IllegalStateException("Cannot release this connection as it didnt come from this pool."); 
+				throw new IllegalStateException("Cannot release this connection as it didnt come from this pool.");
+			}
+		}
+		return false;
+	}
+
+	/* Validates the connection being released by checking whether the client closed it, reporting the check as a
+	 * ConnectionValidationEvent. */
+	private boolean isClosedOnRelease(OConnection oConnectionToBeReleased) throws SQLException {
+		ConnectionValidationEvent validationEvent = new ConnectionValidationEvent();
+		validationEvent.begin();
+		boolean closed = oConnectionToBeReleased.isClosed();
+		validationEvent.end();
+		if(validationEvent.shouldCommit()){
+			validationEvent.connectionId = oConnectionToBeReleased.getConnectionId();
+			validationEvent.valid = !closed;
+			validationEvent.commit();
+		}
+		return closed;
+	}
+
+	/* Reports the hold time of a released connection. */
+	private void commitReleaseEvent(long connectionId, long borrowedAtNanos, boolean closedByClient) {
+		ConnectionReleaseEvent releaseEvent = new ConnectionReleaseEvent();
+		if(releaseEvent.isEnabled()){
+			releaseEvent.connectionId = connectionId;
+			releaseEvent.holdTime = System.nanoTime() - borrowedAtNanos;
+			releaseEvent.closedByClient = closedByClient;
+			releaseEvent.commit();
+		}
+		publish(ConnectionPoolEventRing.RELEASED, connectionId, System.nanoTime() - borrowedAtNanos, closedByClient, null);
+	}
+
+	/* Re-reads datasource.properties from the classpath and applies it. See reconfigure(Properties). */
+	public void reconfigure() throws IOException {
+		reconfigure(DataSource.readProperties());
+	}
+
+	/* Applies new datasource settings to the running pool without a restart and without pausing borrowers.
+	 * The max idle time and validation timeout take effect immediately. A larger pool size opens the extra connections
+	 * in the background; a smaller one retires idle connections now and borrowed ones as they are released.
+	 * A different url, username or password rolls every connection over to the new settings: idle ones in the
+	 * background (new connection first), borrowed ones when they are released.
+	 * Throws IllegalArgumentException and leaves the pool untouched if the properties are malformed. */
+	public void reconfigure(Properties properties) throws IllegalArgumentException {
+		DataSource.validate(properties);
+		boolean driverChanged;
+		boolean endpointChanged;
+		synchronized(ds){
+			String previousDriver = ds.driver;
+			String previousEndpoint = ds.url + "|" + ds.username + "|" + ds.password;
+			ds.load(properties);
+			driverChanged = !ds.driver.equals(previousDriver);
+			endpointChanged = !previousEndpoint.equals(ds.url + "|" + ds.username + "|" + ds.password);
+		}
+		if(driverChanged){
+			registerDriver();
+		}
+		if(endpointChanged){
+			resultCache.invalidate();
+		}
+		List<PooledConnection> outdatedConnections = new ArrayList<PooledConnection>();
+		synchronized(this){
+			if(endpointChanged){
+				connectionEpoch++;
+				outdatedConnections.addAll(connectionList);
 			}
-			if(oConnectionToBeInserted != null){
-				removeReleaseOnAbandonmentHandleFromMap(connection);
-				connectionList.add(oConnectionToBeInserted);
+			while(allConnections.size() > ds.poolSize && !connectionList.isEmpty()){
+				PooledConnection surplusConnection = connectionList.pollLast();
+				outdatedConnections.remove(surplusConnection);
+				retireConnection(surplusConnection, "pool shrunk");
 			}
+			topUpPool();
+			dispatchToWaiters();
+		}
+		for(int i = 0; i < outdatedConnections.size(); i++){
+			runInBackground(getRollTask(outdatedConnections.get(i)));
 		}
+		log.info("Pool reconfigured. poolSize=" + ds.poolSize + ", maxIdleTimeInSeconds=" + ds.maxIdleTimeInSeconds
+				+ ", validationTimeoutInSeconds=" + ds.validationTimeoutInSeconds + (endpointChanged ? ", rolling connections to " + ds.url : ""));
 	}
 
-	/* Remove the  releaseOnAbandonmentHandle from the map for connections that are being released back to the pool. */
-	private void removeReleaseOnAbandonmentHandleFromMap(Connection connection) {
-		ScheduledFuture<?> releaseOnAbandonmentHandle = releaseOnAbandonmentTaskMap.remove(connection);
-		//Checking for null in case of multiple release or close invocations.
-		if(releaseOnAbandonmentHandle != null){
-			releaseOnAbandonmentHandle.cancel(true);
+	/* Starts watching the given properties file and reconfigures the pool whenever it changes.
+	 * Replaces any file that was previously being watched. */
+	public void watchConfiguration(final File propertiesFile) throws IOException {
+		final File file = propertiesFile.getAbsoluteFile();
+		final WatchService watchService = FileSystems.getDefault().newWatchService();
+		file.getParentFile().toPath().register(watchService, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+		synchronized(configurationWatcherLock){
+			stopWatchingConfiguration();
+			configurationWatcher = watchService;
 		}
+		Thread watcherThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while(true){
+						WatchKey key = watchService.take();
+						boolean changed = false;
+						for(WatchEvent<?> event : key.pollEvents()){
+							if(file.getName().equals(String.valueOf(event.context()))){
+								changed = true;
+							}
+						}
+						key.reset();
+						if(changed){
+							reconfigureFromFile(file);
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ClosedWatchServiceException e) {
+					//stopWatchingConfiguration was invoked.
+				}
+			}
+		}, "OConn-configuration-watcher");
+		watcherThread.setDaemon(true);
+		watcherThread.start();
 	}
 
-	/* Invoked by the connection wrapper when any method on it is called by the client.
-	 * This ensures that the timer is reset and active connections dont get considered as abandoned. */
-	void resetAbandonedCheckTimer(OConnection oConnection) {
-		removeReleaseOnAbandonmentHandleFromMap(oConnection);
-		addNewReleaseOnAbandonmentHandleToMap(oConnection);
+	/* Stops watching the properties file, if one is being watched. */
+	public void stopWatchingConfiguration() {
+		synchronized(configurationWatcherLock){
+			if(configurationWatcher != null){
+				try {
+					configurationWatcher.close();
+				} catch (IOException e) {
+					log.debug("Unable to close the configuration watcher. " + e.getMessage());
+				}
+				configurationWatcher = null;
+			}
+		}
 	}
-	
-	/* destroys the pool by getting rid of all the connections. */
-	void destroyPool(){
+
+	/* Loads the changed properties file and applies it. A file that cannot be read or is malformed (e.g. caught
+	 * half written) is logged and ignored; the next change to it will be picked up. */
+	private void reconfigureFromFile(File file) {
+		Properties properties = new Properties();
 		try {
-			synchronized(connectionList){
-				Iterator<Connection> it = connectionList.iterator();
-				while(it.hasNext()){
-					Connection connection = it.next();
-					((OConnection)connection)._connection.close();
-				}
+			InputStream in = new FileInputStream(file);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
 			}
-			connectionList.clear();
-		} catch (SQLException e) {
-			log.error(e.getMessage());
+			reconfigure(properties);
+		} catch (IOException e) {
+			log.error("Unable to read " + file + ". " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			log.error("Ignoring malformed " + file + ". " + e.getMessage());
 		}
 	}
-	
+
+	/* Invoked by the connection wrapper when any method on it is called by the client.
+	 * This records the activity so that active connections dont get considered as abandoned. */
+	void resetAbandonedCheckTimer(OConnection oConnection) {
+		oConnection.pooledConnection.lastActivityNanos = System.nanoTime();
+	}
+
+	/* Reports the closing of a physical connection along with the reason it was closed, to flight recorder and the
+	 * listeners. */
+	private void connectionClosed(long connectionId, String reason) {
+		commitCloseEvent(connectionId, reason);
+		publish(ConnectionPoolEventRing.DESTROYED, connectionId, 0, false, reason);
+	}
+
+	/* Reports the closing of a physical connection along with the reason it was closed. */
+	static void commitCloseEvent(long connectionId, String reason) {
+		ConnectionCloseEvent closeEvent = new ConnectionCloseEvent();
+		if(closeEvent.isEnabled()){
+			closeEvent.connectionId = connectionId;
+			closeEvent.reason = reason;
+			closeEvent.commit();
+		}
+	}
+
 	/* populates the pool with new connections.  */
 	void initializePool() {
 		for(int i = 0; i < ds.poolSize; i++){
-			Connection connection  = createConnection();
-			connectionList.add(connection);
+			PooledConnection pooledConnection = createConnection();
+			synchronized(this){
+				connectionList.addLast(pooledConnection);
+			}
 		}
 	}
-	
+
 	/* returns the number of available connections in the pool. */
-	int getNumberOfAvailableConnections(){
+	synchronized int getNumberOfAvailableConnections(){
 		return connectionList.size();
 	}
-	
-	/* In case the garbage collector picks up this instance, this gives it a fighting chance of cleaning up after itself. */
+
+	/* Shuts the pool down, giving borrowed connections up to datasource.drainTimeoutInSeconds to come back (see drain). */
 	@Override
-	public void finalize(){
-		destroyPool();
+	public void close() {
+		try {
+			drain(ds.drainTimeoutInSeconds, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/* Shuts the pool down gracefully. New borrows are refused from now on and waiting borrowers are turned away, both
+	 * with IllegalStateException. Borrowed connections are given until the timeout to be released; the ones still out
+	 * then are reclaimed (their handles become stale) and their statements cancelled. Every physical connection is then
+	 * closed in parallel, the pool's threads are stopped and its telemetry withdrawn from JMX.
+	 * Returns true if every borrowed connection came back in time and everything was shut down cleanly. Calling it
+	 * again only waits for the first call's shutdown to complete. */
+	public boolean drain(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+		List<Waiter> turnedAway;
+		synchronized(this){
+			if(closing){
+				return scheduler.awaitTermination(timeout, unit);
+			}
+			closing = true;
+			turnedAway = new ArrayList<Waiter>(waiters);
+		}
+		for(int i = 0; i < turnedAway.size(); i++){
+			Waiter waiter = turnedAway.get(i);
+			synchronized(waiter){
+				waiter.notifyAll();
+			}
+		}
+		for(TenantBulkhead tenantBulkhead : tenantBulkheads.values()){
+			tenantBulkhead.close();
+		}
+		stopWatchingConfiguration();
+
+		List<PooledConnection> reclaimed = new ArrayList<PooledConnection>();
+		List<PooledConnection> toClose;
+		synchronized(this){
+			//Also waits for connections being quarantined or opened to settle.
+			long remainingNanos;
+			while(allConnections.size() > connectionList.size() && (remainingNanos = deadlineNanos - System.nanoTime()) > 0){
+				TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+			}
+			for(int i = 0; i < allConnections.size(); i++){
+				PooledConnection pooledConnection = allConnections.get(i);
+				if(pooledConnection.borrowed){
+					endBorrow(pooledConnection);
+					reclaimed.add(pooledConnection);
+				}
+			}
+			toClose = new ArrayList<PooledConnection>(allConnections);
+			allConnections.clear();
+			connectionList.clear();
+		}
+		boolean drained = reclaimed.isEmpty();
+		if(!drained){
+			log.error(reclaimed.size() + " connections were still borrowed when the pool was closed and have been reclaimed.");
+		}
+		for(int i = 0; i < reclaimed.size(); i++){
+			reclaimed.get(i).cancelStatements();
+			reclaimed.get(i).reclaimWarmStatements();
+		}
+		for(int i = 0; i < toClose.size(); i++){
+			runInBackground(getCloseTask(toClose.get(i), "pool closed"));
+		}
+		scheduler.shutdown();
+		boolean terminated = scheduler.awaitTermination(Math.max(deadlineNanos - System.nanoTime(),
+				TimeUnit.SECONDS.toNanos(CLOSE_TIMEOUT_IN_SECONDS)), TimeUnit.NANOSECONDS);
+		if(!terminated){
+			log.error("The pool's threads did not stop in time. Interrupting them.");
+			scheduler.shutdownNow();
+		}
+		boolean listenersDone = events.stop(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+		unregisterTelemetry();
+		log.info("Pool closed.");
+		return drained && terminated && listenersDone;
+	}
+
+	/* Returns true once close or drain has been invoked. */
+	public boolean isClosed() {
+		return closing;
+	}
+
+	/* Withdraws the telemetry from JMX. */
+	private void unregisterTelemetry() {
+		if(telemetryName == null){
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(telemetryName);
+		} catch (JMException e) {
+			log.debug("Unable to unregister the pool telemetry from JMX. " + e.getMessage());
+		}
+		telemetryName = null;
 	}
 
 }
@@ -0,0 +1,216 @@
+package com.opower.connectionpool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the pool's state about once a second into a fixed window of history (datasource.telemetry.windowInSeconds),
+ * so a latency spike can be looked into after the fact: the idle and active connections, the waiting borrowers, the
+ * borrow rate, the median and 99th percentile borrow wait and the connections that failed to open.
+ *
+ * The samples are kept in a circular buffer made of one primitive array per figure, overwriting the oldest once full.
+ * Borrow waits are counted into a log-linear histogram of cumulative counters (four buckets per power of two
+ * microseconds, so percentiles are within 25%); each sample takes the difference from the previous one, so recording a
+ * borrow is a single counter increment.
+ *
+ * Also published over JMX (see PoolTelemetryMXBean).
+ *
+ * @author VinayG
+ */
+final class PoolTelemetry implements PoolTelemetryMXBean {
+
+	private static final int SUB_BUCKETS = 4;
+	private static final int BUCKETS = 256;
+
+	/* Cumulative borrow waits per bucket and connections that failed to open. */
+	private final LongAdder[] waitBuckets = new LongAdder[BUCKETS];
+	private final LongAdder creationFailures = new LongAdder();
+
+	/* The cumulative counts as of the previous sample. Only used by the sampling thread. */
+	private final long[] previousWaitBuckets = new long[BUCKETS];
+	private final long[] intervalWaitBuckets = new long[BUCKETS];
+	private long previousCreationFailures;
+	private long previousSampleNanos;
+
+	/* The samples, oldest first starting at head once the window is full. Guarded by this. */
+	private final int capacity;
+	private final long[] timestampMillis;
+	private final int[] idleConnections;
+	private final int[] activeConnections;
+	private final int[] waiters;
+	private final double[] borrowsPerSecond;
+	private final long[] p50WaitNanos;
+	private final long[] p99WaitNanos;
+	private final long[] intervalCreationFailures;
+	private int head;
+	private int size;
+
+	PoolTelemetry(int capacity){
+		this.capacity = capacity;
+		this.timestampMillis = new long[capacity];
+		this.idleConnections = new int[capacity];
+		this.activeConnections = new int[capacity];
+		this.waiters = new int[capacity];
+		this.borrowsPerSecond = new double[capacity];
+		this.p50WaitNanos = new long[capacity];
+		this.p99WaitNanos = new long[capacity];
+		this.intervalCreationFailures = new long[capacity];
+		for(int i = 0; i < BUCKETS; i++){
+			waitBuckets[i] = new LongAdder();
+		}
+		previousSampleNanos = System.nanoTime();
+	}
+
+	/* Counts a borrow that waited waitNanos for its connection. */
+	void recordBorrow(long waitNanos) {
+		waitBuckets[bucketOf(waitNanos)].increment();
+	}
+
+	/* Counts a connection that failed to open. */
+	void recordCreationFailure() {
+		creationFailures.increment();
+	}
+
+	/* The bucket of a wait: one per microsecond below 4, then four per power of two. */
+	static int bucketOf(long waitNanos) {
+		long micros = Math.max(0, waitNanos) / 1000;
+		if(micros < SUB_BUCKETS){
+			return (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int subBucket = (int) (micros >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+		return Math.min(BUCKETS - 1, SUB_BUCKETS + (exponent - 2) * SUB_BUCKETS + subBucket);
+	}
+
+	/* The longest wait, in nanoseconds, that falls in the bucket. */
+	static long upperBoundOf(int bucket) {
+		if(bucket < SUB_BUCKETS){
+			return (bucket + 1) * 1000L - 1;
+		}
+		int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+		int subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + subBucket + 1) << shift) * 1000L - 1;
+	}
+
+	/* Records a sample of the pool's state along with the borrows and creation failures since the previous sample.
+	 * Only invoked by one thread at a time. */
+	void sample(int idle, int active, int waiting) {
+		long now = System.nanoTime();
+		long borrows = 0;
+		for(int i = 0; i < BUCKETS; i++){
+			long cumulative = waitBuckets[i].sum();
+			intervalWaitBuckets[i] = cumulative - previousWaitBuckets[i];
+			previousWaitBuckets[i] = cumulative;
+			borrows += intervalWaitBuckets[i];
+		}
+		long failures = creationFailures.sum();
+		long intervalFailures = failures - previousCreationFailures;
+		previousCreationFailures = failures;
+		double elapsedSeconds = Math.max(1, now - previousSampleNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+		previousSampleNanos = now;
+
+		long p50 = percentile(borrows, 0.50);
+		long p99 = percentile(borrows, 0.99);
+		synchronized(this){
+			int index = (head + size) % capacity;
+			if(size == capacity){
+				head = (head + 1) % capacity;
+			} else {
+				size++;
+			}
+			timestampMillis[index] = System.currentTimeMillis();
+			idleConnections[index] = idle;
+			activeConnections[index] = active;
+			waiters[index] = waiting;
+			borrowsPerSecond[index] = borrows / elapsedSeconds;
+			p50WaitNanos[index] = p50;
+			p99WaitNanos[index] = p99;
+			intervalCreationFailures[index] = intervalFailures;
+		}
+	}
+
+	/* The wait below which the given fraction of the interval's borrows fall, rounded up to the bucket's bound. */
+	private long percentile(long borrows, double fraction) {
+		if(borrows == 0){
+			return 0;
+		}
+		long rank = (long) Math.ceil(fraction * borrows);
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++){
+			seen += intervalWaitBuckets[i];
+			if(seen >= rank){
+				return upperBoundOf(i);
+			}
+		}
+		return upperBoundOf(BUCKETS - 1);
+	}
+
+	/* Copies out the samples in the window, oldest first. */
+	synchronized PoolTelemetryHistory getHistory() {
+		PoolTelemetryHistory history = new PoolTelemetryHistory(size);
+		for(int i = 0; i < size; i++){
+			int index = (head + i) % capacity;
+			history.timestampMillis[i] = timestampMillis[index];
+			history.idleConnections[i] = idleConnections[index];
+			history.activeConnections[i] = activeConnections[index];
+			history.waiters[i] = waiters[index];
+			history.borrowsPerSecond[i] = borrowsPerSecond[index];
+			history.p50WaitNanos[i] = p50WaitNanos[index];
+			history.p99WaitNanos[i] = p99WaitNanos[index];
+			history.creationFailures[i] = intervalCreationFailures[index];
+		}
+		return history;
+	}
+
+	/* The index of the latest sample, or -1 if there is none yet. Must hold the monitor. */
+	private int latest() {
+		return size == 0 ? -1 : (head + size - 1) % capacity;
+	}
+
+	@Override
+	public synchronized int getSampleCount() {
+		return size;
+	}
+
+	@Override
+	public synchronized int getIdleConnections() {
+		return size == 0 ? 0 : idleConnections[latest()];
+	}
+
+	@Override
+	public synchronized int getActiveConnections() {
+		return size == 0 ? 0 : activeConnections[latest()];
+	}
+
+	@Override
+	public synchronized int getWaiters() {
+		return size == 0 ? 0 : waiters[latest()];
+	}
+
+	@Override
+	public synchronized double getBorrowsPerSecond() {
+		return size == 0 ? 0 : borrowsPerSecond[latest()];
+	}
+
+	@Override
+	public synchronized double getP50WaitMillis() {
+		return size == 0 ? 0 : p50WaitNanos[latest()] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	@Override
+	public synchronized double getP99WaitMillis() {
+		return size == 0 ? 0 : p99WaitNanos[latest()] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	@Override
+	public synchronized long getCreationFailures() {
+		return size == 0 ? 0 : intervalCreationFailures[latest()];
+	}
+
+	@Override
+	public void dumpCsv(String path) throws IOException {
+		getHistory().writeCsv(new File(path));
+	}
+}
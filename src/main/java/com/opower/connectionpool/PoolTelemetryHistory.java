@@ -0,0 +1,97 @@
+package com.opower.connectionpool;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A copy of the telemetry samples in the pool's window, oldest first (see OConnectionPoolImpl.getTelemetry).
+ * Sample i is read through the getters; waits are in nanoseconds and creation failures count those since the
+ * previous sample.
+ *
+ * @author VinayG
+ */
+public final class PoolTelemetryHistory {
+
+	private static final String CSV_HEADER = "timestampMillis,idleConnections,activeConnections,waiters,borrowsPerSecond,"
+			+ "p50WaitNanos,p99WaitNanos,creationFailures";
+
+	final long[] timestampMillis;
+	final int[] idleConnections;
+	final int[] activeConnections;
+	final int[] waiters;
+	final double[] borrowsPerSecond;
+	final long[] p50WaitNanos;
+	final long[] p99WaitNanos;
+	final long[] creationFailures;
+
+	PoolTelemetryHistory(int size){
+		timestampMillis = new long[size];
+		idleConnections = new int[size];
+		activeConnections = new int[size];
+		waiters = new int[size];
+		borrowsPerSecond = new double[size];
+		p50WaitNanos = new long[size];
+		p99WaitNanos = new long[size];
+		creationFailures = new long[size];
+	}
+
+	public int size() {
+		return timestampMillis.length;
+	}
+
+	public long getTimestampMillis(int sample) {
+		return timestampMillis[sample];
+	}
+
+	public int getIdleConnections(int sample) {
+		return idleConnections[sample];
+	}
+
+	public int getActiveConnections(int sample) {
+		return activeConnections[sample];
+	}
+
+	public int getWaiters(int sample) {
+		return waiters[sample];
+	}
+
+	public double getBorrowsPerSecond(int sample) {
+		return borrowsPerSecond[sample];
+	}
+
+	public long getP50WaitNanos(int sample) {
+		return p50WaitNanos[sample];
+	}
+
+	public long getP99WaitNanos(int sample) {
+		return p99WaitNanos[sample];
+	}
+
+	public long getCreationFailures(int sample) {
+		return creationFailures[sample];
+	}
+
+	/* Writes the samples as CSV with a header line. */
+	public void writeCsv(Writer out) throws IOException {
+		out.write(CSV_HEADER);
+		out.write('\n');
+		for(int i = 0; i < size(); i++){
+			out.write(timestampMillis[i] + "," + idleConnections[i] + "," + activeConnections[i] + "," + waiters[i] + ","
+					+ borrowsPerSecond[i] + "," + p50WaitNanos[i] + "," + p99WaitNanos[i] + "," + creationFailures[i]);
+			out.write('\n');
+		}
+	}
+
+	/* Writes the samples to the file as CSV, replacing it. */
+	public void writeCsv(File file) throws IOException {
+		Writer out = new BufferedWriter(new FileWriter(file));
+		try {
+			writeCsv(out);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package com.opower.connectionpool;
+
+import java.io.IOException;
+
+/**
+ * The pool's telemetry over JMX, registered as com.opower.connectionpool:type=PoolTelemetry,id=N for every pool.
+ * The attributes are those of the latest sample; dumpCsv writes the whole window for a post-mortem.
+ *
+ * @author VinayG
+ */
+public interface PoolTelemetryMXBean {
+
+	int getSampleCount();
+
+	int getIdleConnections();
+
+	int getActiveConnections();
+
+	int getWaiters();
+
+	double getBorrowsPerSecond();
+
+	double getP50WaitMillis();
+
+	double getP99WaitMillis();
+
+	/* Connections that failed to open during the latest sample's interval. */
+	long getCreationFailures();
+
+	/* Writes every sample in the window to the file, as CSV. */
+	void dumpCsv(String path) throws IOException;
+}
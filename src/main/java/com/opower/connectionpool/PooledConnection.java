@@ -0,0 +1,228 @@
+package com.opower.connectionpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The pool's record of a single physical connection. One instance lives for as long as the physical connection does
+ * and is reused across every borrow of it, so the per-borrow state lives here rather than on the OConnection handles.
+ *
+ * The generation is moved on every time a borrow ends (release, close or abandonment). Each OConnection handle
+ * remembers the generation it was issued for, so handles held by earlier borrowers are recognized as stale and refuse
+ * any further call. A call already under way when the borrow ends is only detected once it returns (see OConnection).
+ *
+ * A borrow made with getConnectionUntil is held to its deadline: its statements get the remaining time as their query
+ * timeout and the abandonment sweep reclaims the connection once the deadline has passed. Reclaimed connections are
+ * quarantined (statements cancelled, transaction rolled back, connection validated) before they are lent out again.
+ *
+ * Ending a borrow only moves the generation on, so borrowing and returning a connection produces no garbage beyond
+ * the small OConnection handle itself.
+ *
+ * The statements created through the current borrow are tracked so that an abandoned borrow's in-flight work can be
+ * cancelled before the physical connection is lent to anyone else, and so that the statements a borrower leaves open
+ * (and with them their result sets and the cursors they hold on the server) are closed when the borrow ends rather
+ * than piling up on the physical connection.
+ *
+ * Connections can also carry warm statements, prepared when the connection was created and lent to every borrower
+ * preparing the same SQL (see WarmStatements).
+ *
+ * The mutable fields are guarded by the owning pool's monitor except where noted.
+ *
+ * @author VinayG
+ */
+final class PooledConnection {
+
+	private static final AtomicLong idSequence = new AtomicLong();
+
+	/* How many statements are tracked before the closed ones are pruned. */
+	private static final int PRUNE_THRESHOLD = 64;
+
+	/* The physical connection. */
+	final Connection connection;
+
+	/* Identifies the physical connection in logs and flight recorder events. */
+	final long id;
+
+	/* The pool's connection epoch (url and credentials) the physical connection was opened under. */
+	final long epoch;
+
+	/* Moved on whenever a borrow ends. Read without the pool monitor by handles checking for staleness. */
+	volatile long generation;
+
+	/* True between the pool handing out a handle and the borrow ending. */
+	boolean borrowed;
+
+	/* Set while the borrower's release is cleaning up outside the pool monitor, so the borrow is not reclaimed (and the
+	 * connection lent to someone else) underneath it. */
+	boolean releasing;
+
+	/* The lane the current (or last) borrow was made through. */
+	ConnectionPriority priority = ConnectionPriority.NORMAL;
+
+	/* The bulkhead of the tenant the current borrow is charged to, if any. */
+	TenantBulkhead tenantBulkhead;
+
+	/* The System.nanoTime() by which the current borrower must be done, if hasDeadline is set. Written by the borrowing
+	 * thread before the handle is issued; read without the pool monitor. */
+	private volatile long deadlineNanos;
+	private volatile boolean hasDeadline;
+
+	/* System.nanoTime() at which the current borrow started. */
+	long borrowedAtNanos;
+
+	/* System.nanoTime() of the last method invoked through the current handle. Written without the pool monitor. */
+	volatile long lastActivityNanos;
+
+	/* Set when the client closed the physical connection rather than releasing it. */
+	volatile boolean closedByClient;
+
+	/* The statements prepared when the connection was created, or null if none are configured. Only used by the
+	 * borrower and, between borrows, the pool. */
+	WarmStatements warmStatements;
+
+	/* Statements created through the current borrow's handle. Guarded by itself, as is the size at which the closed
+	 * ones are next pruned, which grows with a borrow that keeps many statements open. */
+	private final List<Statement> openStatements = new ArrayList<Statement>();
+	private int pruneThreshold = PRUNE_THRESHOLD;
+
+	PooledConnection(Connection connection, long epoch){
+		this.connection = connection;
+		this.id = idSequence.incrementAndGet();
+		this.epoch = epoch;
+	}
+
+	/* Ends the current borrow, invalidating the handle that was issued for it. The warm statements it had not closed
+	 * are taken back by reclaimWarmStatements once nothing can still be running on them. */
+	void endBorrow() {
+		borrowed = false;
+		releasing = false;
+		hasDeadline = false;
+		generation++;
+	}
+
+	/* Gives back the warm statements the ended borrow had not closed. An abandoned borrower may still be executing
+	 * them, so for a reclaimed connection this waits until its statements have been cancelled. */
+	void reclaimWarmStatements() {
+		if(warmStatements != null){
+			warmStatements.reclaim();
+		}
+	}
+
+	/* Holds the current borrow to the deadline. */
+	void setDeadline(long deadlineNanos) {
+		this.deadlineNanos = deadlineNanos;
+		hasDeadline = true;
+	}
+
+	/* Returns true if the current borrow has a deadline and it has passed by now. */
+	boolean isPastDeadline(long now) {
+		return hasDeadline && now - deadlineNanos >= 0;
+	}
+
+	/* Sets the time left until the current borrow's deadline, if it has one, as the statement's query timeout. Query
+	 * timeouts are in whole seconds, so the remaining time is rounded up.
+	 * Throws SQLTimeoutException if the deadline has already passed. */
+	void applyDeadline(Statement statement) throws SQLException {
+		if(!hasDeadline){
+			return;
+		}
+		long remainingNanos = deadlineNanos - System.nanoTime();
+		if(remainingNanos <= 0){
+			throw new SQLTimeoutException("The deadline of this borrow has passed.");
+		}
+		long oneSecondInNanos = TimeUnit.SECONDS.toNanos(1);
+		statement.setQueryTimeout((int) Math.min(Integer.MAX_VALUE, (remainingNanos + oneSecondInNanos - 1) / oneSecondInNanos));
+	}
+
+	/* Records a statement created by the current borrower. A borrow that creates many statements has the ones it
+	 * already closed pruned now and then so the record stays small. */
+	void trackStatement(Statement statement) {
+		synchronized(openStatements){
+			if(openStatements.size() >= pruneThreshold){
+				pruneClosedStatements();
+				pruneThreshold = Math.max(PRUNE_THRESHOLD, openStatements.size() * 2);
+			}
+			openStatements.add(statement);
+		}
+	}
+
+	private void pruneClosedStatements() {
+		Iterator<Statement> statements = openStatements.iterator();
+		while(statements.hasNext()){
+			try {
+				if(statements.next().isClosed()){
+					statements.remove();
+				}
+			} catch (SQLException e) {
+				statements.remove();
+			}
+		}
+	}
+
+	/* Forgets the statements of the previous borrow. */
+	void clearStatements() {
+		synchronized(openStatements){
+			openStatements.clear();
+			pruneThreshold = PRUNE_THRESHOLD;
+		}
+	}
+
+	/* Closes every tracked statement the borrower left open, which also closes their result sets, and forgets them.
+	 * Warm statements are left out as they are given back rather than closed (see WarmStatements.reclaim).
+	 * Returns how many statements were left open. Failures are ignored as the statement is unusable either way. */
+	int closeStatements() {
+		int leftOpen = 0;
+		synchronized(openStatements){
+			for(int i = 0; i < openStatements.size(); i++){
+				Statement statement = openStatements.get(i);
+				if(WarmStatements.isHandle(statement)){
+					continue;
+				}
+				try {
+					if(!statement.isClosed()){
+						leftOpen++;
+						statement.close();
+					}
+				} catch (SQLException e) {
+					//Closing is all that can be done with it.
+				}
+			}
+			openStatements.clear();
+			pruneThreshold = PRUNE_THRESHOLD;
+		}
+		return leftOpen;
+	}
+
+	/* Cancels every tracked statement that may still be executing, then closes them and forgets them, as the borrower
+	 * that abandoned them will not. Warm statements still lent out are cancelled directly, as their handles already
+	 * behave as closed once the borrow has ended. Failures are ignored since the connection is validated afterwards
+	 * anyway. */
+	void cancelStatements() {
+		synchronized(openStatements){
+			for(int i = 0; i < openStatements.size(); i++){
+				Statement statement = openStatements.get(i);
+				if(WarmStatements.isHandle(statement)){
+					continue;
+				}
+				try {
+					if(!statement.isClosed()){
+						statement.cancel();
+					}
+				} catch (SQLException e) {
+					//The statement or its connection is already unusable. Validation will catch the latter.
+				}
+			}
+		}
+		if(warmStatements != null){
+			warmStatements.cancelLent();
+		}
+		closeStatements();
+	}
+}
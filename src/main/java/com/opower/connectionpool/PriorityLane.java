@@ -0,0 +1,39 @@
+package com.opower.connectionpool;
+
+/**
+ * The pool's bookkeeping for a single ConnectionPriority: how many connections the lane currently has borrowed and
+ * the counters behind its LaneStatistics. Guarded by the owning pool's monitor.
+ * 
+ * @author VinayG
+ */
+final class PriorityLane {
+
+	final ConnectionPriority priority;
+	
+	int activeConnections;
+	int waitingBorrowers;
+	long borrowCount;
+	long waitCount;
+	long timeoutCount;
+	long totalWaitNanos;
+	long maxWaitNanos;
+	
+	PriorityLane(ConnectionPriority priority){
+		this.priority = priority;
+	}
+	
+	/* Records a successful borrow and how long it waited (zero if it didn't have to wait). */
+	void recordBorrow(long waitNanos) {
+		borrowCount++;
+		if(waitNanos > 0){
+			waitCount++;
+			totalWaitNanos += waitNanos;
+			maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+		}
+	}
+	
+	LaneStatistics snapshot() {
+		return new LaneStatistics(priority, activeConnections, waitingBorrowers, borrowCount, waitCount, timeoutCount,
+				totalWaitNanos, maxWaitNanos);
+	}
+}
@@ -0,0 +1,120 @@
+package com.opower.connectionpool;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-bounded LRU cache of query results keyed by SQL plus bound parameters. Entries expire after a time to live
+ * and the least recently used ones are evicted once the estimated memory of the cached rows exceeds the limit.
+ * Backs OConnectionPoolImpl.queryCached, which returns a fresh result without borrowing a connection at all
+ * (datasource.resultCache.maxBytes and datasource.resultCache.timeToLiveInSeconds).
+ *
+ * A lookup that misses returns the cache's generation, which the caller hands back when storing the result it
+ * fetched. invalidate() moves the generation on, so a result fetched before the invalidation is never stored after it.
+ * 
+ * @author VinayG
+ */
+final class ResultCache {
+
+	/* Identifies a cached query. The parameters are copied so later changes by the caller do not affect the key. */
+	static final class Key {
+		final String sql;
+		final Object[] parameters;
+		private final int hash;
+
+		Key(String sql, Object[] parameters){
+			this.sql = sql;
+			this.parameters = parameters == null ? new Object[0] : parameters.clone();
+			this.hash = 31 * sql.hashCode() + Arrays.deepHashCode(this.parameters);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if(!(other instanceof Key)){
+				return false;
+			}
+			Key otherKey = (Key) other;
+			return hash == otherKey.hash && sql.equals(otherKey.sql) && Arrays.deepEquals(parameters, otherKey.parameters);
+		}
+	}
+
+	private static final class Entry {
+		final CachedResult result;
+		final long expiresAtNanos;
+
+		Entry(CachedResult result, long expiresAtNanos){
+			this.result = result;
+			this.expiresAtNanos = expiresAtNanos;
+		}
+	}
+
+	/* In access order, least recently used first. Guarded by the cache's monitor as are the counters below. */
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+	private long estimatedBytes;
+	private long generation;
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+
+	/* Returns the unexpired result for the key, or null on a miss. */
+	synchronized CachedResult get(Key key) {
+		Entry entry = entries.get(key);
+		if(entry != null && entry.expiresAtNanos - System.nanoTime() <= 0){
+			remove(key);
+			entry = null;
+		}
+		if(entry == null){
+			missCount++;
+			return null;
+		}
+		hitCount++;
+		return entry.result;
+	}
+
+	synchronized long getGeneration() {
+		return generation;
+	}
+
+	/* Stores the result unless the cache was invalidated since the given generation or the result alone exceeds the
+	 * limit, then evicts the least recently used entries until the cache fits within maxBytes. */
+	synchronized void put(Key key, CachedResult result, long fetchedInGeneration, long maxBytes, long timeToLiveNanos) {
+		if(fetchedInGeneration != generation || result.getEstimatedBytes() > maxBytes){
+			return;
+		}
+		remove(key);
+		entries.put(key, new Entry(result, System.nanoTime() + timeToLiveNanos));
+		estimatedBytes += result.getEstimatedBytes();
+		Iterator<Map.Entry<Key, Entry>> leastRecentlyUsed = entries.entrySet().iterator();
+		while(estimatedBytes > maxBytes && leastRecentlyUsed.hasNext()){
+			estimatedBytes -= leastRecentlyUsed.next().getValue().result.getEstimatedBytes();
+			leastRecentlyUsed.remove();
+			evictionCount++;
+		}
+	}
+
+	/* Drops every cached result. */
+	synchronized void invalidate() {
+		entries.clear();
+		estimatedBytes = 0;
+		generation++;
+	}
+
+	synchronized ResultCacheStatistics getStatistics() {
+		return new ResultCacheStatistics(entries.size(), estimatedBytes, hitCount, missCount, evictionCount);
+	}
+
+	private void remove(Key key) {
+		Entry removed = entries.remove(key);
+		if(removed != null){
+			estimatedBytes -= removed.result.getEstimatedBytes();
+		}
+	}
+}
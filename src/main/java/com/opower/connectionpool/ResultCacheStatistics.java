@@ -0,0 +1,61 @@
+package com.opower.connectionpool;
+
+/**
+ * A point-in-time snapshot of the pool's result cache since the pool was created.
+ * Used to size the cache and judge which queries are worth caching.
+ * 
+ * @author VinayG
+ */
+public final class ResultCacheStatistics {
+
+	private final int entryCount;
+	private final long estimatedBytes;
+	private final long hitCount;
+	private final long missCount;
+	private final long evictionCount;
+	
+	ResultCacheStatistics(int entryCount, long estimatedBytes, long hitCount, long missCount, long evictionCount){
+		this.entryCount = entryCount;
+		this.estimatedBytes = estimatedBytes;
+		this.hitCount = hitCount;
+		this.missCount = missCount;
+		this.evictionCount = evictionCount;
+	}
+
+	/* Results currently cached. */
+	public int getEntryCount() {
+		return entryCount;
+	}
+
+	/* Approximate memory held by the cached results. */
+	public long getEstimatedBytes() {
+		return estimatedBytes;
+	}
+
+	/* Queries served from the cache. */
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	/* Queries that had to go to the database, including those whose cached result had expired. */
+	public long getMissCount() {
+		return missCount;
+	}
+
+	/* Results evicted to keep the cache within its size limit. */
+	public long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/* Fraction of the queries served from the cache. */
+	public double getHitRate() {
+		long lookups = hitCount + missCount;
+		return lookups == 0 ? 0 : (double) hitCount / lookups;
+	}
+
+	@Override
+	public String toString() {
+		return "ResultCache [entries=" + entryCount + ", estimatedBytes=" + estimatedBytes + ", hits=" + hitCount
+				+ ", misses=" + missCount + ", evictions=" + evictionCount + ", hitRate=" + getHitRate() + "]";
+	}
+}
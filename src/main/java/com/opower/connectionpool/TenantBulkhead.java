@@ -0,0 +1,130 @@
+package com.opower.connectionpool;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caps the share of the pool a single tenant can hold. Tracks how many connections the tenant has borrowed and lets
+ * a bounded number of the tenant's borrowers wait for one of them to be released (datasource.tenant.maxConnections and
+ * datasource.tenant.maxWaiters), so a single tenant cannot take over the shared pool.
+ *
+ * The borrowed count is a single atomic so a permit is a compare-and-set in the common case; the monitor is only
+ * taken by borrowers that have to wait and by releases while someone is waiting. The borrow and rejection counters
+ * are striped (LongAdder) since every borrow of every thread of the tenant updates them.
+ *
+ * A bulkhead that has gone quiet is retired by setting its borrowed count to RETIRED, after which it never hands out
+ * another permit and borrowers fetch a fresh bulkhead for the tenant from the pool.
+ *
+ * @author VinayG
+ */
+final class TenantBulkhead {
+
+	/* Outcomes of tryAcquire. */
+	static final int ACQUIRED = 0;
+	static final int FULL = 1;
+	static final int RETIRED = 2;
+
+	private static final int RETIRED_MARKER = -1;
+
+	final String tenant;
+
+	/* Connections currently borrowed by the tenant, or RETIRED_MARKER. */
+	private final AtomicInteger borrowedConnections = new AtomicInteger();
+
+	/* Borrowers of the tenant currently waiting. Only modified under the monitor. */
+	private volatile int waitingBorrowers;
+
+	/* Set when the pool is closing, which turns the waiting borrowers away. */
+	private volatile boolean closed;
+
+	/* System.nanoTime() of the last borrow or release. */
+	private volatile long lastUsedNanos = System.nanoTime();
+
+	final LongAdder borrowCount = new LongAdder();
+	final LongAdder rejectionCount = new LongAdder();
+
+	TenantBulkhead(String tenant){
+		this.tenant = tenant;
+	}
+
+	/* Takes a permit if the tenant is below maxConnections. */
+	int tryAcquire(int maxConnections) {
+		while(true){
+			int borrowed = borrowedConnections.get();
+			if(borrowed == RETIRED_MARKER){
+				return RETIRED;
+			}
+			if(borrowed >= maxConnections){
+				return FULL;
+			}
+			if(borrowedConnections.compareAndSet(borrowed, borrowed + 1)){
+				lastUsedNanos = System.nanoTime();
+				borrowCount.increment();
+				return ACQUIRED;
+			}
+		}
+	}
+
+	/* Takes a permit, waiting until the deadline if the tenant is at maxConnections. Returns RETIRED if the bulkhead
+	 * was retired before a permit could be taken.
+	 * Throws IllegalStateException if maxWaiters of the tenant's borrowers are already waiting, the deadline passes or
+	 * the pool is closed meanwhile. */
+	int acquire(int maxConnections, int maxWaiters, long deadlineNanos) throws InterruptedException {
+		int outcome = tryAcquire(maxConnections);
+		if(outcome != FULL){
+			return outcome;
+		}
+		synchronized(this){
+			if(waitingBorrowers >= maxWaiters){
+				rejectionCount.increment();
+				throw new IllegalStateException("Too many borrowers waiting for tenant " + tenant + ".");
+			}
+			waitingBorrowers++;
+			try {
+				while((outcome = tryAcquire(maxConnections)) == FULL){
+					if(closed){
+						throw new IllegalStateException("The pool has been closed.");
+					}
+					long remainingNanos = deadlineNanos - System.nanoTime();
+					if(remainingNanos <= 0){
+						rejectionCount.increment();
+						throw new IllegalStateException("Tenant " + tenant + " is at its connection limit.");
+					}
+					TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+				}
+				return outcome;
+			} finally {
+				waitingBorrowers--;
+			}
+		}
+	}
+
+	/* Gives a permit back and wakes one of the tenant's waiting borrowers, if any. */
+	void release() {
+		borrowedConnections.decrementAndGet();
+		lastUsedNanos = System.nanoTime();
+		if(waitingBorrowers > 0){
+			synchronized(this){
+				notify();
+			}
+		}
+	}
+
+	/* Wakes the tenant's waiting borrowers and turns them away, as the pool is closing. */
+	synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	/* Retires the bulkhead if the tenant has nothing borrowed, nobody waiting and has been quiet since quietSinceNanos. */
+	synchronized boolean retireIfQuiet(long quietSinceNanos) {
+		return waitingBorrowers == 0 && lastUsedNanos - quietSinceNanos < 0
+				&& borrowedConnections.compareAndSet(0, RETIRED_MARKER);
+	}
+
+	/* Connections currently borrowed by the tenant. */
+	int getBorrowedConnections() {
+		return Math.max(0, borrowedConnections.get());
+	}
+}
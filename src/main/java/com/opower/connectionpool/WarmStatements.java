@@ -0,0 +1,153 @@
+package com.opower.connectionpool;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The statements prepared on a physical connection when it was created (datasource.warmStatements), kept open for
+ * the life of the connection so borrowers preparing the same SQL reuse them rather than starting cold.
+ *
+ * prepareStatement(sql) on a borrowed OConnection lends out the warm statement for the SQL if it is not already lent
+ * to the current borrow. The borrower gets a handle: closing it gives the statement back (with its parameters and
+ * batch cleared) instead of closing it, and it behaves as closed afterwards. Statements still lent when the borrow
+ * ends are given back by the pool.
+ *
+ * Used by the thread borrowing the connection and, when a borrow is reclaimed, by the pool's threads while the
+ * abandoning borrower may still be using its handles. Hence the lent statements are guarded by this object's monitor.
+ * A reclaimed connection's lent statements are only given back after they have been cancelled (see
+ * PooledConnection.cancelStatements), so they are not reset while the abandoning borrower is still executing them.
+ *
+ * @author VinayG
+ */
+final class WarmStatements {
+
+	private final PooledConnection pooledConnection;
+
+	/* Every warm statement, by SQL. */
+	private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+
+	/* The handles currently lent out, by SQL. Guarded by this. */
+	private final Map<String, WarmStatementHandler> lent = new HashMap<String, WarmStatementHandler>();
+
+	WarmStatements(PooledConnection pooledConnection){
+		this.pooledConnection = pooledConnection;
+	}
+
+	/* Prepares the statements on the physical connection. */
+	void prepare(Connection connection, String[] sqls) throws SQLException {
+		for(int i = 0; i < sqls.length; i++){
+			if(!statements.containsKey(sqls[i])){
+				statements.put(sqls[i], connection.prepareStatement(sqls[i]));
+			}
+		}
+	}
+
+	/* Returns a handle to the warm statement for the SQL, or null if there is none or it is already lent out. */
+	synchronized PreparedStatement lend(String sql) {
+		PreparedStatement statement = statements.get(sql);
+		if(statement == null || lent.containsKey(sql)){
+			return null;
+		}
+		WarmStatementHandler handler = new WarmStatementHandler(sql, statement, pooledConnection.generation);
+		lent.put(sql, handler);
+		return (PreparedStatement) Proxy.newProxyInstance(WarmStatements.class.getClassLoader(),
+				new Class<?>[]{PreparedStatement.class}, handler);
+	}
+
+	/* Gives back every statement still lent out, as the borrow has ended. */
+	synchronized void reclaim() {
+		Iterator<WarmStatementHandler> handlers = lent.values().iterator();
+		while(handlers.hasNext()){
+			handlers.next().giveBack();
+			handlers.remove();
+		}
+	}
+
+	/* Cancels the statements still lent out, which an abandoning borrower may be executing. */
+	synchronized void cancelLent() {
+		for(WarmStatementHandler handler : lent.values()){
+			try {
+				handler.statement.cancel();
+			} catch (SQLException e) {
+				//A broken statement shows up as a broken connection, which validation deals with.
+			}
+		}
+	}
+
+	/* Returns true if the statement is a handle lent out by lend. */
+	static boolean isHandle(Statement statement) {
+		return Proxy.isProxyClass(statement.getClass()) && Proxy.getInvocationHandler(statement) instanceof WarmStatementHandler;
+	}
+
+	/* Number of warm statements. */
+	int size() {
+		return statements.size();
+	}
+
+	/* Forwards to the warm statement until the handle is closed or its borrow ends. */
+	private final class WarmStatementHandler implements InvocationHandler {
+		private final String sql;
+		private final PreparedStatement statement;
+		private final long generation;
+		/* Set once given back. Read without the monitor by the borrower's calls. */
+		private volatile boolean closed;
+
+		WarmStatementHandler(String sql, PreparedStatement statement, long generation){
+			this.sql = sql;
+			this.statement = statement;
+			this.generation = generation;
+		}
+
+		/* Clears what the borrower left on the statement. Failures are ignored as the next borrower sets its own.
+		 * Must hold the WarmStatements monitor. */
+		void giveBack() {
+			closed = true;
+			try {
+				statement.clearParameters();
+				statement.clearBatch();
+				statement.setQueryTimeout(0);
+				statement.setFetchSize(0);
+			} catch (SQLException e) {
+				//A broken statement shows up as a broken connection, which validation deals with.
+			}
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			boolean stale = closed || pooledConnection.generation != generation;
+			if(name.equals("close")){
+				synchronized(WarmStatements.this){
+					//Checked again as the pool may have reclaimed the statement meanwhile.
+					if(!closed && pooledConnection.generation == generation){
+						giveBack();
+						lent.remove(sql);
+					}
+				}
+				return null;
+			} else if(name.equals("isClosed")){
+				return stale || statement.isClosed();
+			} else if(name.equals("hashCode")){
+				return System.identityHashCode(proxy);
+			} else if(name.equals("equals")){
+				return proxy == args[0];
+			} else if(stale){
+				throw new SQLException("This statement has already been closed.");
+			}
+			try {
+				return method.invoke(statement, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+}
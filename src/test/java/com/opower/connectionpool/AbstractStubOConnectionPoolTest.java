@@ -0,0 +1,46 @@
+package com.opower.connectionpool;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Base class for tests that run the pool against the in-memory StubDriver instead of the database configured
+ * in datasource.properties. The DataSource singleton is pointed at the stub before the pool is created and
+ * every setting is restored afterwards so other test classes in the same JVM are unaffected.
+ * 
+ * @author VinayG
+ */
+public abstract class AbstractStubOConnectionPoolTest extends AbstractTestOConnectionPoolImpl {
+
+	private final Map<Field, Object> originalSettings = new HashMap<Field, Object>();
+	
+	@Override
+	public void setUp() throws Exception {
+		DataSource ds = DataSource.getInstance();
+		for(Field field : DataSource.class.getDeclaredFields()){
+			if(!Modifier.isStatic(field.getModifiers()) && !Modifier.isPrivate(field.getModifiers())){
+				originalSettings.put(field, field.get(ds));
+			}
+		}
+		
+		ds.driver = StubDriver.class.getName();
+		ds.url = StubDriver.URL_PREFIX + getClass().getSimpleName();
+		configureDataSource(ds);
+		super.setUp();
+	}
+	
+	/* Hook for subclasses to adjust the settings the pool is created with. */
+	protected void configureDataSource(DataSource ds) {
+	}
+
+	@Override
+	public void tearDown() throws Exception {
+		super.tearDown();
+		DataSource ds = DataSource.getInstance();
+		for(Map.Entry<Field, Object> setting : originalSettings.entrySet()){
+			setting.getKey().set(ds, setting.getValue());
+		}
+	}
+}
@@ -2,6 +2,7 @@ package com.opower.connectionpool;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.TestCase;
 
@@ -47,8 +48,8 @@ public abstract class AbstractTestOConnectionPoolImpl extends TestCase{
 
 	
 	/* recycles all the connections in the pool. */
-	protected void recyclePool(){
-		connectionPoolImpl.destroyPool();
+	protected void recyclePool() throws InterruptedException {
+		connectionPoolImpl.drain(0, TimeUnit.SECONDS);
 		//connectionPoolImpl.initializePool();
 	}
 }
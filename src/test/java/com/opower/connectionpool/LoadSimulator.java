@@ -0,0 +1,253 @@
+package com.opower.connectionpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives many concurrent borrowers against a pool, typically one backed by StubDriver with latencies and faults
+ * switched on, and reports the throughput, the borrowers' wait times and whether the pool kept its invariants:
+ * a physical connection is never lent to two borrowers at once and every connection is accounted for afterwards.
+ *
+ * Each borrower repeatedly borrows a NORMAL priority connection, runs a query and releases it. A borrower whose query
+ * fails because the connection died closes the connection instead, as an application would.
+ *
+ * Can be run on its own (see main) or from a test.
+ *
+ * @author VinayG
+ */
+final class LoadSimulator {
+
+	private static final String QUERY = "select 1";
+
+	/* How long to wait for the pool to settle after the run before checking for leaks. */
+	private static final long SETTLE_TIMEOUT_IN_MILLIS = 10000;
+
+	/* The outcome of a run. Times are in milliseconds. */
+	static final class Result {
+		final int borrowers;
+		final long borrows;
+		final long timeouts;
+		final long failedQueries;
+		final long doubleLendings;
+		final int leakedConnections;
+		final int leakedPhysicalConnections;
+		final double throughputPerSecond;
+		final double p50WaitMillis;
+		final double p90WaitMillis;
+		final double p99WaitMillis;
+		final double maxWaitMillis;
+
+		Result(int borrowers, long borrows, long timeouts, long failedQueries, long doubleLendings, int leakedConnections,
+				int leakedPhysicalConnections, double throughputPerSecond, long[] sortedWaitNanos){
+			this.borrowers = borrowers;
+			this.borrows = borrows;
+			this.timeouts = timeouts;
+			this.failedQueries = failedQueries;
+			this.doubleLendings = doubleLendings;
+			this.leakedConnections = leakedConnections;
+			this.leakedPhysicalConnections = leakedPhysicalConnections;
+			this.throughputPerSecond = throughputPerSecond;
+			this.p50WaitMillis = percentileMillis(sortedWaitNanos, 0.50);
+			this.p90WaitMillis = percentileMillis(sortedWaitNanos, 0.90);
+			this.p99WaitMillis = percentileMillis(sortedWaitNanos, 0.99);
+			this.maxWaitMillis = percentileMillis(sortedWaitNanos, 1);
+		}
+
+		private static double percentileMillis(long[] sortedWaitNanos, double percentile) {
+			if(sortedWaitNanos.length == 0){
+				return 0;
+			}
+			int index = (int) Math.min(sortedWaitNanos.length - 1, Math.ceil(percentile * sortedWaitNanos.length) - 1);
+			return (double) sortedWaitNanos[Math.max(0, index)] / TimeUnit.MILLISECONDS.toNanos(1);
+		}
+
+		/* True if no connection was lent twice at once and none were leaked. */
+		boolean invariantsHeld() {
+			return doubleLendings == 0 && leakedConnections == 0 && leakedPhysicalConnections == 0;
+		}
+
+		@Override
+		public String toString() {
+			return "borrowers=" + borrowers + ", borrows=" + borrows + ", throughput=" + Math.round(throughputPerSecond)
+					+ "/s, wait p50=" + p50WaitMillis + "ms p90=" + p90WaitMillis + "ms p99=" + p99WaitMillis
+					+ "ms max=" + maxWaitMillis + "ms, timeouts=" + timeouts + ", failedQueries=" + failedQueries
+					+ ", doubleLendings=" + doubleLendings + ", leakedConnections=" + leakedConnections
+					+ ", leakedPhysicalConnections=" + leakedPhysicalConnections;
+		}
+	}
+
+	private final OConnectionPoolImpl pool;
+	private final String url;
+	private final int poolSize;
+	private final int borrowers;
+	private final long durationMillis;
+	private final long borrowTimeoutMillis;
+
+	/* The borrower currently holding each physical connection. */
+	private final ConcurrentHashMap<Connection, Thread> lentConnections = new ConcurrentHashMap<Connection, Thread>();
+
+	private final AtomicLong borrows = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong failedQueries = new AtomicLong();
+	private final AtomicLong doubleLendings = new AtomicLong();
+
+	/* The wait time of every borrow, per borrower. Each slot is only written by its borrower. */
+	private final long[][] waitNanos;
+	private final int[] waitCounts;
+
+	/* The pool is expected to be configured (through DataSource) with the given stub url and pool size. */
+	LoadSimulator(OConnectionPoolImpl pool, String url, int poolSize, int borrowers, long durationMillis,
+			long borrowTimeoutMillis){
+		this.pool = pool;
+		this.url = url;
+		this.poolSize = poolSize;
+		this.borrowers = borrowers;
+		this.durationMillis = durationMillis;
+		this.borrowTimeoutMillis = borrowTimeoutMillis;
+		this.waitNanos = new long[borrowers][];
+		this.waitCounts = new int[borrowers];
+	}
+
+	/* Runs the borrowers for the duration, then destroys the pool and checks that nothing was leaked. */
+	Result run() throws InterruptedException {
+		final long endNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+		Thread[] threads = new Thread[borrowers];
+		for(int i = 0; i < borrowers; i++){
+			final int borrower = i;
+			waitNanos[i] = new long[64];
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					while(System.nanoTime() - endNanos < 0){
+						borrowOnce(borrower);
+					}
+				}
+			}, "OConn-load-borrower-" + i);
+		}
+		long startNanos = System.nanoTime();
+		for(int i = 0; i < borrowers; i++){
+			threads[i].start();
+		}
+		for(int i = 0; i < borrowers; i++){
+			threads[i].join();
+		}
+		double elapsedSeconds = (double) (System.nanoTime() - startNanos) / TimeUnit.SECONDS.toNanos(1);
+
+		int leakedConnections = poolSize - awaitAvailableConnections();
+		pool.close();
+		int leakedPhysicalConnections = awaitClosedPhysicalConnections();
+
+		int totalWaits = 0;
+		for(int i = 0; i < borrowers; i++){
+			totalWaits += waitCounts[i];
+		}
+		long[] allWaitNanos = new long[totalWaits];
+		int offset = 0;
+		for(int i = 0; i < borrowers; i++){
+			System.arraycopy(waitNanos[i], 0, allWaitNanos, offset, waitCounts[i]);
+			offset += waitCounts[i];
+		}
+		Arrays.sort(allWaitNanos);
+		return new Result(borrowers, borrows.get(), timeouts.get(), failedQueries.get(), doubleLendings.get(),
+				leakedConnections, leakedPhysicalConnections, borrows.get() / elapsedSeconds, allWaitNanos);
+	}
+
+	/* Borrows a connection, runs the query on it and gives it back. */
+	private void borrowOnce(int borrower) {
+		long borrowStartNanos = System.nanoTime();
+		Connection connection;
+		try {
+			connection = pool.getConnection(ConnectionPriority.NORMAL, borrowTimeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (IllegalStateException e) {
+			timeouts.incrementAndGet();
+			return;
+		} catch (SQLException e) {
+			timeouts.incrementAndGet();
+			return;
+		}
+		recordWait(borrower, System.nanoTime() - borrowStartNanos);
+		borrows.incrementAndGet();
+
+		Connection physical = ((OConnection) connection)._connection;
+		if(lentConnections.putIfAbsent(physical, Thread.currentThread()) != null){
+			doubleLendings.incrementAndGet();
+		}
+		boolean connectionDied = false;
+		try {
+			Statement statement = connection.createStatement();
+			try {
+				statement.executeQuery(QUERY).close();
+			} finally {
+				statement.close();
+			}
+		} catch (SQLException e) {
+			failedQueries.incrementAndGet();
+			connectionDied = e.getSQLState() != null && e.getSQLState().startsWith("08");
+		} catch (IllegalStateException e) {
+			//Reclaimed by the pool as abandoned; the handle is already stale.
+			failedQueries.incrementAndGet();
+		}
+		lentConnections.remove(physical, Thread.currentThread());
+		try {
+			if(connectionDied){
+				connection.close();
+			} else {
+				pool.releaseConnection(connection);
+			}
+		} catch (SQLException e) {
+			failedQueries.incrementAndGet();
+		}
+	}
+
+	private void recordWait(int borrower, long nanos) {
+		if(waitCounts[borrower] == waitNanos[borrower].length){
+			waitNanos[borrower] = Arrays.copyOf(waitNanos[borrower], waitNanos[borrower].length * 2);
+		}
+		waitNanos[borrower][waitCounts[borrower]++] = nanos;
+	}
+
+	/* Waits for every connection to be back in the pool and returns how many are. */
+	private int awaitAvailableConnections() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT_IN_MILLIS;
+		while(pool.getNumberOfAvailableConnections() < poolSize && System.currentTimeMillis() < deadline){
+			Thread.sleep(20);
+		}
+		return pool.getNumberOfAvailableConnections();
+	}
+
+	/* Waits for every physical connection opened for the url to be closed and returns how many are still open. */
+	private int awaitClosedPhysicalConnections() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT_IN_MILLIS;
+		while(StubDriver.openConnectionsFor(url) > 0 && System.currentTimeMillis() < deadline){
+			Thread.sleep(20);
+		}
+		return StubDriver.openConnectionsFor(url);
+	}
+
+	/* Runs a simulation from the command line:
+	 *   LoadSimulator [borrowers] [durationInSeconds] [poolSize] [stub url options]
+	 * e.g. LoadSimulator 2000 10 20 ";connectLatencyMillis=20;queryLatency=exponential:2;socketDeathRate=0.0005" */
+	public static void main(String[] args) throws Exception {
+		int borrowers = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int durationInSeconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int poolSize = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+		String options = args.length > 3 ? args[3]
+				: ";connectLatencyMillis=20;queryLatency=exponential:2;socketDeathRate=0.0005;closeLatencyMillis=20;seed=1";
+		String url = StubDriver.URL_PREFIX + "load-simulator" + options;
+
+		DataSource ds = DataSource.getInstance();
+		ds.driver = StubDriver.class.getName();
+		ds.url = url;
+		ds.poolSize = poolSize;
+		ds.maxIdleTimeInSeconds = 60;
+		OConnectionPoolImpl pool = new OConnectionPoolImpl();
+		Result result = new LoadSimulator(pool, url, poolSize, borrowers, TimeUnit.SECONDS.toMillis(durationInSeconds), 5000).run();
+		System.out.println(result);
+		System.out.println(result.invariantsHeld() ? "Invariants held." : "INVARIANTS VIOLATED.");
+		System.exit(result.invariantsHeld() ? 0 : 1);
+	}
+}
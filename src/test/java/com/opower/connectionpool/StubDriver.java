@@ -0,0 +1,382 @@
+package com.opower.connectionpool;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * An in-memory java.sql.Driver used by the tests so the pool can be exercised without a running database.
+ * Accepts urls starting with jdbc:stub: and hands out proxy connections that track their open/closed and
+ * autoCommit state. Queries return a single row holding the SQL and the parameters they were run with (columns "sql"
+ * and "parameters"); updates and every row of a batch affect one row.
+ *
+ * By default everything happens instantly and nothing fails. Options in the url (see StubProfile) add connect, query
+ * and close latencies and random socket deaths, drawn from seeded random numbers so a run can be repeated.
+ *
+ * @author VinayG
+ */
+public class StubDriver implements Driver {
+
+	static final String URL_PREFIX = "jdbc:stub:";
+
+	/* Number of physical stub connections that have been opened and not yet closed. */
+	static final AtomicInteger openConnections = new AtomicInteger();
+	
+	/* The profile, number of open connections and number of connections ever opened, per url. */
+	private static final ConcurrentHashMap<String, UrlState> urlStates = new ConcurrentHashMap<String, UrlState>();
+	
+	/* Number of queries, single updates and batches executed on stub statements, and rows sent in batches. */
+	static final AtomicInteger executedQueries = new AtomicInteger();
+	static final AtomicInteger executedUpdates = new AtomicInteger();
+	static final AtomicInteger executedBatches = new AtomicInteger();
+	static final AtomicInteger batchedRows = new AtomicInteger();
+
+	static {
+		try {
+			DriverManager.registerDriver(new StubDriver());
+		} catch (SQLException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	@Override
+	public Connection connect(String url, Properties info) throws SQLException {
+		if(!acceptsURL(url)){
+			return null;
+		}
+		UrlState urlState = urlStateOf(url);
+		StubProfile.pause(TimeUnit.MILLISECONDS.toNanos(urlState.profile.connectLatencyMillis));
+		openConnections.incrementAndGet();
+		urlState.openConnections.incrementAndGet();
+		Random random = new Random(urlState.profile.seed * 31 + urlState.connectionSequence.incrementAndGet());
+		return (Connection) Proxy.newProxyInstance(StubDriver.class.getClassLoader(),
+				new Class<?>[]{Connection.class}, new StubConnectionHandler(url, urlState, random));
+	}
+	
+	/* Returns the number of stub connections opened for the url that have not been closed yet. */
+	static int openConnectionsFor(String url) {
+		return urlStateOf(url).openConnections.get();
+	}
+	
+	private static UrlState urlStateOf(String url) {
+		UrlState urlState = urlStates.get(url);
+		if(urlState == null){
+			urlStates.putIfAbsent(url, new UrlState(StubProfile.parse(url)));
+			urlState = urlStates.get(url);
+		}
+		return urlState;
+	}
+	
+	private static final class UrlState {
+		final StubProfile profile;
+		final AtomicInteger openConnections = new AtomicInteger();
+		final AtomicLong connectionSequence = new AtomicLong();
+		
+		UrlState(StubProfile profile){
+			this.profile = profile;
+		}
+	}
+
+	@Override
+	public boolean acceptsURL(String url) throws SQLException {
+		return url != null && url.startsWith(URL_PREFIX);
+	}
+
+	@Override
+	public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) throws SQLException {
+		return new DriverPropertyInfo[0];
+	}
+
+	@Override
+	public int getMajorVersion() {
+		return 1;
+	}
+
+	@Override
+	public int getMinorVersion() {
+		return 0;
+	}
+
+	@Override
+	public boolean jdbcCompliant() {
+		return false;
+	}
+
+	@Override
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	/* Returns the handler backing a stub connection or statement proxy so tests can inspect its state. */
+	@SuppressWarnings("unchecked")
+	static <T extends InvocationHandler> T handlerOf(Object stubProxy) {
+		return (T) Proxy.getInvocationHandler(stubProxy);
+	}
+
+	/* Returns the zero value for the given return type so unstubbed methods behave like a no-op. */
+	static Object defaultValue(Class<?> type) {
+		if(type == boolean.class){
+			return Boolean.FALSE;
+		} else if(type == int.class){
+			return 0;
+		} else if(type == long.class){
+			return 0L;
+		} else if(type == double.class){
+			return 0d;
+		} else if(type == float.class){
+			return 0f;
+		} else if(type == short.class){
+			return (short) 0;
+		} else if(type == byte.class){
+			return (byte) 0;
+		}
+		return null;
+	}
+
+	/* Backs a stub Connection proxy. */
+	static class StubConnectionHandler implements InvocationHandler {
+		final String url;
+		/* The SQL of every statement prepared and every SQL string executed on the connection, in order. Only kept when
+		 * the url's profile has record set. */
+		final List<String> preparedSql = Collections.synchronizedList(new ArrayList<String>());
+		final List<String> executedSql = Collections.synchronizedList(new ArrayList<String>());
+		/* Every statement created or prepared on the connection, in order, when the url's profile has record set. */
+		final List<Statement> statements = Collections.synchronizedList(new ArrayList<Statement>());
+		private final UrlState urlState;
+		private final Random random;
+		volatile boolean closed;
+		/* Set once the simulated socket has died. */
+		volatile boolean broken;
+		volatile boolean autoCommit = true;
+		volatile int rollbacks;
+		volatile int commits;
+
+		StubConnectionHandler(String url, UrlState urlState, Random random){
+			this.url = url;
+			this.urlState = urlState;
+			this.random = random;
+		}
+		
+		/* Simulates the round trip of a statement execution: waits out its latency and kills the socket at random.
+		 * Throws SQLException with SQLState 08006 once the socket is dead. */
+		void simulateExecution() throws SQLException {
+			if(broken){
+				throw new SQLException("An I/O error occurred while sending to the backend.", "08006");
+			}
+			long latencyNanos;
+			boolean dies;
+			synchronized(random){
+				latencyNanos = urlState.profile.sampleQueryLatencyNanos(random);
+				dies = urlState.profile.socketDeathRate > 0 && random.nextDouble() < urlState.profile.socketDeathRate;
+			}
+			StubProfile.pause(latencyNanos);
+			if(dies){
+				broken = true;
+				throw new SQLException("An I/O error occurred while sending to the backend.", "08006");
+			}
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if(name.equals("close")){
+				synchronized(this){
+					if(closed){
+						return null;
+					}
+					closed = true;
+				}
+				StubProfile.pause(TimeUnit.MILLISECONDS.toNanos(urlState.profile.closeLatencyMillis));
+				openConnections.decrementAndGet();
+				urlState.openConnections.decrementAndGet();
+				return null;
+			} else if(name.equals("isClosed")){
+				return closed;
+			} else if(name.equals("isValid")){
+				return !closed && !broken;
+			} else if(name.equals("hashCode")){
+				return System.identityHashCode(proxy);
+			} else if(name.equals("equals")){
+				return proxy == args[0];
+			} else if(name.equals("toString")){
+				return "StubConnection@" + Integer.toHexString(System.identityHashCode(proxy));
+			}
+			if(closed){
+				throw new SQLException("Connection is closed.", "08003");
+			} else if(broken){
+				throw new SQLException("An I/O error occurred while sending to the backend.", "08006");
+			}
+			if(name.equals("getAutoCommit")){
+				return autoCommit;
+			} else if(name.equals("setAutoCommit")){
+				autoCommit = (Boolean) args[0];
+				return null;
+			} else if(name.equals("commit")){
+				commits++;
+				return null;
+			} else if(name.equals("rollback")){
+				rollbacks++;
+				return null;
+			} else if(name.startsWith("createStatement") || name.startsWith("prepare")){
+				Class<?> statementType = method.getReturnType();
+				String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : null;
+				if(sql != null && urlState.profile.record){
+					preparedSql.add(sql);
+				}
+				Statement statement = (Statement) Proxy.newProxyInstance(StubDriver.class.getClassLoader(),
+						new Class<?>[]{statementType}, new StubStatementHandler((Connection) proxy, sql));
+				if(urlState.profile.record){
+					statements.add(statement);
+				}
+				return statement;
+			}
+			return defaultValue(method.getReturnType());
+		}
+	}
+
+	/* Backs a stub Statement, PreparedStatement or CallableStatement proxy. */
+	static class StubStatementHandler implements InvocationHandler {
+		private final Connection connection;
+		private final String sql;
+		private final Map<Integer, Object> parameters = new TreeMap<Integer, Object>();
+		private int batchSize;
+		volatile int queryTimeout;
+		volatile int fetchSize;
+		volatile boolean closed;
+		volatile boolean cancelled;
+
+		StubStatementHandler(Connection connection, String sql){
+			this.connection = connection;
+			this.sql = sql;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if(name.equals("close")){
+				closed = true;
+				return null;
+			} else if(name.equals("isClosed")){
+				return closed;
+			} else if(name.equals("getConnection")){
+				return connection;
+			} else if(name.equals("cancel")){
+				cancelled = true;
+				return null;
+			} else if(name.equals("hashCode")){
+				return System.identityHashCode(proxy);
+			} else if(name.equals("equals")){
+				return proxy == args[0];
+			} else if(name.equals("toString")){
+				return "StubStatement@" + Integer.toHexString(System.identityHashCode(proxy));
+			}
+			if(closed){
+				throw new SQLException("Statement is closed.");
+			}
+			if(name.startsWith("execute")){
+				StubConnectionHandler connectionHandler = handlerOf(connection);
+				connectionHandler.simulateExecution();
+				if(connectionHandler.urlState.profile.record && args != null && args.length > 0 && args[0] instanceof String){
+					connectionHandler.executedSql.add((String) args[0]);
+				}
+			}
+			if(name.equals("setFetchSize")){
+				fetchSize = (Integer) args[0];
+				return null;
+			} else if(name.equals("getFetchSize")){
+				return fetchSize;
+			} else if(name.equals("setQueryTimeout")){
+				queryTimeout = (Integer) args[0];
+				return null;
+			} else if(name.equals("getQueryTimeout")){
+				return queryTimeout;
+			} else if(name.equals("addBatch")){
+				batchSize++;
+				return null;
+			} else if(name.equals("clearBatch")){
+				batchSize = 0;
+				return null;
+			} else if(name.equals("executeBatch")){
+				executedBatches.incrementAndGet();
+				batchedRows.addAndGet(batchSize);
+				int[] updateCounts = new int[batchSize];
+				Arrays.fill(updateCounts, 1);
+				batchSize = 0;
+				return updateCounts;
+			} else if(name.equals("executeUpdate")){
+				executedUpdates.incrementAndGet();
+				return 1;
+			} else if(name.equals("setObject") || (name.startsWith("set") && args != null && args.length == 2 && args[0] instanceof Integer)){
+				parameters.put((Integer) args[0], args[1]);
+				return null;
+			} else if(name.equals("clearParameters")){
+				parameters.clear();
+				return null;
+			} else if(name.equals("executeQuery")){
+				executedQueries.incrementAndGet();
+				String executedSql = args != null && args.length > 0 ? (String) args[0] : sql;
+				return Proxy.newProxyInstance(StubDriver.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+						new StubResultSetHandler(new Object[]{executedSql, parameters.values().toString()}));
+			}
+			return defaultValue(method.getReturnType());
+		}
+	}
+
+	/* Backs a stub ResultSet proxy holding a single row with the columns "sql" and "parameters". */
+	static class StubResultSetHandler implements InvocationHandler {
+		private static final String[] COLUMN_LABELS = {"sql", "parameters"};
+		private final Object[] row;
+		private int position;
+
+		StubResultSetHandler(Object[] row){
+			this.row = row;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if(name.equals("next")){
+				return ++position == 1;
+			} else if(name.equals("getObject") || name.equals("getString")){
+				int column = args[0] instanceof Integer ? (Integer) args[0] : Arrays.asList(COLUMN_LABELS).indexOf(args[0]) + 1;
+				return row[column - 1];
+			} else if(name.equals("getMetaData")){
+				return Proxy.newProxyInstance(StubDriver.class.getClassLoader(), new Class<?>[]{ResultSetMetaData.class},
+						new InvocationHandler() {
+							public Object invoke(Object metaData, Method method, Object[] args) throws Throwable {
+								if(method.getName().equals("getColumnCount")){
+									return COLUMN_LABELS.length;
+								} else if(method.getName().equals("getColumnLabel") || method.getName().equals("getColumnName")){
+									return COLUMN_LABELS[(Integer) args[0] - 1];
+								}
+								return defaultValue(method.getReturnType());
+							}
+						});
+			}
+			return defaultValue(method.getReturnType());
+		}
+	}
+
+}
@@ -0,0 +1,122 @@
+package com.opower.connectionpool;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The latencies and faults StubDriver simulates for the connections of a url. They are given as ;key=value options
+ * after the name in the url, e.g.
+ *
+ *   jdbc:stub:load;connectLatencyMillis=20;queryLatency=exponential:2;socketDeathRate=0.001;closeLatencyMillis=50;seed=7
+ *
+ * connectLatencyMillis  time taken to open a connection (default 0)
+ * queryLatency          distribution of the time taken by each statement execution, in milliseconds:
+ *                       fixed:MEAN, uniform:MIN:MAX or exponential:MEAN (default none)
+ * socketDeathRate       probability that an execution finds the socket dead, after which the connection fails every
+ *                       call with SQLState 08006 until it is closed (default 0)
+ * closeLatencyMillis    time taken to close a connection (default 0)
+ * seed                  seed of the random numbers; each connection draws from its own sequence derived from it and
+ *                       the order in which the connections were opened (default 0)
+ * record                whether each connection keeps the SQL it prepared and executed and the statements it created,
+ *                       for tests that inspect them (default false, as the history grows with every borrow)
+ *
+ * @author VinayG
+ */
+final class StubProfile {
+
+	private static final String FIXED = "fixed";
+	private static final String UNIFORM = "uniform";
+	private static final String EXPONENTIAL = "exponential";
+
+	final long connectLatencyMillis;
+	final long closeLatencyMillis;
+	final double socketDeathRate;
+	final long seed;
+	final boolean record;
+	private final String queryLatencyKind;
+	private final double queryLatencyFirst;
+	private final double queryLatencySecond;
+
+	private StubProfile(long connectLatencyMillis, long closeLatencyMillis, double socketDeathRate, long seed,
+			boolean record, String queryLatencyKind, double queryLatencyFirst, double queryLatencySecond){
+		this.connectLatencyMillis = connectLatencyMillis;
+		this.closeLatencyMillis = closeLatencyMillis;
+		this.socketDeathRate = socketDeathRate;
+		this.seed = seed;
+		this.record = record;
+		this.queryLatencyKind = queryLatencyKind;
+		this.queryLatencyFirst = queryLatencyFirst;
+		this.queryLatencySecond = queryLatencySecond;
+	}
+
+	/* Parses the options of the url. Throws IllegalArgumentException for an unknown or malformed option. */
+	static StubProfile parse(String url) {
+		long connectLatencyMillis = 0;
+		long closeLatencyMillis = 0;
+		double socketDeathRate = 0;
+		long seed = 0;
+		boolean record = false;
+		String queryLatencyKind = null;
+		double queryLatencyFirst = 0;
+		double queryLatencySecond = 0;
+		String[] options = url.split(";");
+		for(int i = 1; i < options.length; i++){
+			int separator = options[i].indexOf('=');
+			if(separator < 0){
+				throw new IllegalArgumentException("Malformed stub option " + options[i]);
+			}
+			String key = options[i].substring(0, separator).trim();
+			String value = options[i].substring(separator + 1).trim();
+			if(key.equals("connectLatencyMillis")){
+				connectLatencyMillis = Long.parseLong(value);
+			} else if(key.equals("closeLatencyMillis")){
+				closeLatencyMillis = Long.parseLong(value);
+			} else if(key.equals("socketDeathRate")){
+				socketDeathRate = Double.parseDouble(value);
+			} else if(key.equals("seed")){
+				seed = Long.parseLong(value);
+			} else if(key.equals("record")){
+				record = Boolean.parseBoolean(value);
+			} else if(key.equals("queryLatency")){
+				String[] distribution = value.split(":");
+				queryLatencyKind = distribution[0];
+				if(!queryLatencyKind.equals(FIXED) && !queryLatencyKind.equals(UNIFORM) && !queryLatencyKind.equals(EXPONENTIAL)){
+					throw new IllegalArgumentException("Unknown query latency distribution " + value);
+				}
+				queryLatencyFirst = Double.parseDouble(distribution[1]);
+				queryLatencySecond = queryLatencyKind.equals(UNIFORM) ? Double.parseDouble(distribution[2]) : 0;
+			} else {
+				throw new IllegalArgumentException("Unknown stub option " + key);
+			}
+		}
+		return new StubProfile(connectLatencyMillis, closeLatencyMillis, socketDeathRate, seed, record,
+				queryLatencyKind, queryLatencyFirst, queryLatencySecond);
+	}
+
+	/* Draws the latency of a statement execution, in nanoseconds. */
+	long sampleQueryLatencyNanos(Random random) {
+		double millis;
+		if(queryLatencyKind == null){
+			return 0;
+		} else if(queryLatencyKind.equals(FIXED)){
+			millis = queryLatencyFirst;
+		} else if(queryLatencyKind.equals(UNIFORM)){
+			millis = queryLatencyFirst + random.nextDouble() * (queryLatencySecond - queryLatencyFirst);
+		} else {
+			millis = -queryLatencyFirst * Math.log(1 - random.nextDouble());
+		}
+		return (long) (millis * TimeUnit.MILLISECONDS.toNanos(1));
+	}
+
+	/* Sleeps for the given time, keeping the interrupt for the caller. */
+	static void pause(long nanos) {
+		if(nanos <= 0){
+			return;
+		}
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package com.opower.connectionpool;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+
+import org.junit.Test;
+
+import com.opower.connectionpool.StubDriver.StubConnectionHandler;
+import com.opower.connectionpool.StubDriver.StubStatementHandler;
+
+/*
+ * Ensures abandoned connections are cleaned up and validated before the pool lends them out again.
+ * 
+ * @author VinayG
+ */
+public class TestAbandonmentQuarantine extends AbstractStubOConnectionPoolTest {
+
+	private static final String WARM_SQL = "select name from country where code = ?";
+	
+	@Override
+	protected void configureDataSource(DataSource ds) {
+		ds.poolSize = 1;
+		ds.url += ";record=true";
+		ds.maxIdleTimeInSeconds = 1;
+		ds.warmStatements = new String[]{WARM_SQL};
+	}
+	
+	/* Ensures the abandoning borrower's statements are cancelled and its transaction rolled back. */
+	@Test
+	public void testReclaimCancelsStatementsAndRollsBack() throws Exception {
+		Connection abandoned = connectionPoolImpl.getConnection();
+		abandoned.setAutoCommit(false);
+		Statement statement = abandoned.createStatement();
+		Connection physical = ((OConnection) abandoned)._connection;
+		
+		Thread.sleep(LITTLE_MORE_THAN_MAX_IDLE_TIME);
+		assertTrue(abandoned.isClosed());
+		assertTrue(StubDriver.<StubStatementHandler>handlerOf(statement).cancelled);
+		assertEquals(1, StubDriver.<StubConnectionHandler>handlerOf(physical).rollbacks);
+		
+		Connection next = connectionPoolImpl.getConnection();
+		assertSame(physical, ((OConnection) next)._connection);
+		assertTrue(next.getAutoCommit());
+	}
+	
+	/* Ensures a warm statement the abandoning borrower was executing is cancelled, and only given back (its parameters
+	 * cleared) once the connection has been quarantined. */
+	@Test
+	public void testReclaimCancelsWarmStatements() throws Exception {
+		Connection abandoned = connectionPoolImpl.getConnection();
+		StubConnectionHandler physical = StubDriver.handlerOf(((OConnection) abandoned)._connection);
+		PreparedStatement warm = abandoned.prepareStatement(WARM_SQL);
+		warm.setString(1, "US");
+		StubStatementHandler physicalWarm = StubDriver.handlerOf(physical.statements.get(0));
+		
+		Thread.sleep(LITTLE_MORE_THAN_MAX_IDLE_TIME);
+		assertTrue(physicalWarm.cancelled);
+		assertFalse(physicalWarm.closed);
+		
+		Connection next = connectionPoolImpl.getConnection();
+		assertSame(physical, StubDriver.handlerOf(((OConnection) next)._connection));
+		assertEquals("[]", next.prepareStatement(WARM_SQL).executeQuery().getObject("parameters"));
+	}
+	
+	/* Ensures a reclaimed connection that is no longer usable is replaced rather than lent out. */
+	@Test
+	public void testReclaimReplacesInvalidConnection() throws Exception {
+		Connection abandoned = connectionPoolImpl.getConnection();
+		Connection physical = ((OConnection) abandoned)._connection;
+		physical.close();
+		
+		Thread.sleep(LITTLE_MORE_THAN_MAX_IDLE_TIME);
+		Connection next = connectionPoolImpl.getConnection();
+		assertNotSame(physical, ((OConnection) next)._connection);
+		assertFalse(next.isClosed());
+	}
+}
@@ -0,0 +1,142 @@
+package com.opower.connectionpool;
+
+import java.sql.BatchUpdateException;
+import java.sql.PreparedStatement;
+import java.sql.Savepoint;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/*
+ * Ensures repeated single-row updates are coalesced into batches, only once the borrower opts in, that are flushed on
+ * size, before anything else runs on the connection and at commit, and discarded on rollback.
+ * 
+ * @author VinayG
+ */
+public class TestBatchCoalescing extends AbstractStubOConnectionPoolTest {
+
+	private static final String INSERT = "insert into reading (meter, value) values (?, ?)";
+	
+	private OConnection connection;
+	private int executedBatches;
+	private int batchedRows;
+	private int executedUpdates;
+	
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		connection = (OConnection) connectionPoolImpl.getConnection();
+		connection.enableBatchCoalescing(3, 1, TimeUnit.HOURS);
+		connection.setAutoCommit(false);
+		executedBatches = StubDriver.executedBatches.get();
+		batchedRows = StubDriver.batchedRows.get();
+		executedUpdates = StubDriver.executedUpdates.get();
+	}
+	
+	/* Runs the insert through a new statement, the way the ingest path does. */
+	private int insert(int meter) throws Exception {
+		return insert(connection, meter);
+	}
+	
+	private static int insert(OConnection connection, int meter) throws Exception {
+		PreparedStatement statement = connection.prepareStatement(INSERT);
+		statement.setInt(1, meter);
+		statement.setDouble(2, meter * 1.5);
+		int updateCount = statement.executeUpdate();
+		statement.close();
+		return updateCount;
+	}
+	
+	private void assertFlushed(int batches, int rows) {
+		assertEquals(batches, StubDriver.executedBatches.get() - executedBatches);
+		assertEquals(rows, StubDriver.batchedRows.get() - batchedRows);
+	}
+	
+	/* Ensures full batches are executed and the rest is flushed at commit. */
+	@Test
+	public void testFlushOnSizeAndCommit() throws Exception {
+		for(int i = 0; i < 7; i++){
+			assertEquals(1, insert(i));
+		}
+		assertFlushed(2, 6);
+		connection.commit();
+		assertFlushed(3, 7);
+		assertEquals(0, StubDriver.executedUpdates.get() - executedUpdates);
+	}
+	
+	/* Ensures pending rows are flushed before other statements run and discarded by a rollback. */
+	@Test
+	public void testTransactionBoundaries() throws Exception {
+		insert(1);
+		connection.createStatement().executeQuery("select count(*) from reading");
+		assertFlushed(1, 1);
+		
+		insert(2);
+		Savepoint savepoint = connection.setSavepoint();
+		assertFlushed(2, 2);
+		insert(3);
+		connection.rollback(savepoint);
+		assertFlushed(3, 3);
+		
+		insert(4);
+		connection.rollback();
+		connection.commit();
+		assertFlushed(3, 3);
+	}
+	
+	/* Ensures updates run right away in autoCommit mode and pending rows are flushed when the connection is released. */
+	@Test
+	public void testAutoCommitAndRelease() throws Exception {
+		connection.setAutoCommit(true);
+		insert(1);
+		assertEquals(1, StubDriver.executedUpdates.get() - executedUpdates);
+		assertFlushed(0, 0);
+		
+		connection.setAutoCommit(false);
+		insert(2);
+		insert(3);
+		connectionPoolImpl.releaseConnection(connection);
+		assertFlushed(1, 2);
+		assertEquals(connectionPoolImpl.getNumberOfAvailableConnections(), DataSource.getInstance().poolSize);
+	}
+	
+	/* Ensures the configured batch size does not coalesce a borrow's updates until the borrower opts in. */
+	@Test
+	public void testOptIn() throws Exception {
+		DataSource.getInstance().batchCoalescingMaxBatchSize = 2;
+		OConnection other = (OConnection) connectionPoolImpl.getConnection();
+		other.setAutoCommit(false);
+		insert(other, 1);
+		assertEquals(1, StubDriver.executedUpdates.get() - executedUpdates);
+		assertFlushed(0, 0);
+		
+		other.enableBatchCoalescing();
+		insert(other, 2);
+		insert(other, 3);
+		assertEquals(1, StubDriver.executedUpdates.get() - executedUpdates);
+		assertFlushed(1, 2);
+		
+		DataSource.getInstance().batchCoalescingMaxBatchSize = 0;
+		try {
+			connection.enableBatchCoalescing();
+			fail("Should have thrown a IllegalStateException");
+		} catch (IllegalStateException e) {
+			//part of legit flow.
+		}
+	}
+	
+	/* Ensures a failed flush names the coalesced SQL it failed on, whichever call triggered it. */
+	@Test
+	public void testFlushFailureNamesStatement() throws Exception {
+		insert(1);
+		insert(2);
+		StubDriver.<StubDriver.StubConnectionHandler>handlerOf(connection._connection).broken = true;
+		try {
+			connection.commit();
+			fail("Should have thrown a BatchUpdateException");
+		} catch (BatchUpdateException e) {
+			assertTrue(e.getMessage().contains(INSERT));
+			assertEquals("08006", e.getSQLState());
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package com.opower.connectionpool;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/*
+ * Ensures a borrow made against a deadline waits no longer than the deadline, passes the remaining time on as the
+ * query timeout of its statements and is reclaimed once the deadline has passed.
+ * 
+ * @author VinayG
+ */
+public class TestBorrowDeadline extends AbstractStubOConnectionPoolTest {
+
+	@Override
+	protected void configureDataSource(DataSource ds) {
+		ds.poolSize = 1;
+		ds.maxIdleTimeInSeconds = 60;
+	}
+	
+	/* Ensures statements get the time remaining until the deadline, rounded up to whole seconds. */
+	@Test
+	public void testRemainingTimeAppliedToStatements() throws Exception {
+		Connection connection = connectionPoolImpl.getConnectionUntil(ConnectionPriority.NORMAL,
+				System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(2500));
+		assertEquals(3, connection.createStatement().getQueryTimeout());
+		assertEquals(3, connection.prepareStatement("select 1").getQueryTimeout());
+		connectionPoolImpl.releaseConnection(connection);
+		
+		connection = connectionPoolImpl.getConnection();
+		assertEquals(0, connection.createStatement().getQueryTimeout());
+	}
+	
+	/* Ensures the connection is reclaimed, and its running statements cancelled, once the deadline has passed. */
+	@Test
+	public void testReclaimedAfterDeadline() throws Exception {
+		Connection connection = connectionPoolImpl.getConnectionUntil(ConnectionPriority.NORMAL,
+				System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300));
+		Statement running = connection.createStatement();
+		StubDriver.StubStatementHandler physicalStatement = StubDriver.handlerOf(running);
+		
+		long deadline = System.currentTimeMillis() + 5000;
+		while(connectionPoolImpl.getNumberOfAvailableConnections() == 0 && System.currentTimeMillis() < deadline){
+			Thread.sleep(20);
+		}
+		assertEquals(1, connectionPoolImpl.getNumberOfAvailableConnections());
+		assertTrue(physicalStatement.cancelled);
+		assertTrue(connection.isClosed());
+		try {
+			connection.createStatement();
+			fail("Should have thrown a IllegalStateException");
+		} catch (IllegalStateException e) {
+			//part of legit flow.
+		}
+	}
+	
+	/* Ensures a borrower gives up waiting at the deadline. */
+	@Test
+	public void testWaitBoundedByDeadline() throws Exception {
+		connectionPoolImpl.getConnection();
+		long start = System.nanoTime();
+		try {
+			connectionPoolImpl.getConnectionUntil(ConnectionPriority.NORMAL, start + TimeUnit.MILLISECONDS.toNanos(100));
+			fail("Should have thrown a IllegalStateException");
+		} catch (IllegalStateException e) {
+			//part of legit flow.
+		}
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+	}
+}
@@ -0,0 +1,71 @@
+package com.opower.connectionpool;
+
+import java.io.File;
+import java.sql.Connection;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Test;
+
+import com.opower.connectionpool.ConnectionPoolEvents.ConnectionAbandonedEvent;
+import com.opower.connectionpool.ConnectionPoolEvents.ConnectionBorrowEvent;
+import com.opower.connectionpool.ConnectionPoolEvents.ConnectionCloseEvent;
+import com.opower.connectionpool.ConnectionPoolEvents.ConnectionCreateEvent;
+import com.opower.connectionpool.ConnectionPoolEvents.ConnectionReleaseEvent;
+import com.opower.connectionpool.ConnectionPoolEvents.ConnectionValidationEvent;
+
+/*
+ * Ensures the pool emits its flight recorder events while a recording is running.
+ * 
+ * @author VinayG
+ */
+public class TestConnectionPoolEvents extends AbstractStubOConnectionPoolTest {
+
+	/* Drives a borrow, release, client close and abandonment through the pool and checks each shows up in the recording. */
+	@Test
+	public void testEventsAreRecorded() throws Exception {
+		dataSource.maxIdleTimeInSeconds = 1;
+		Recording recording = new Recording();
+		recording.enable(ConnectionBorrowEvent.class).withThreshold(Duration.ZERO);
+		recording.enable(ConnectionReleaseEvent.class);
+		recording.enable(ConnectionCreateEvent.class);
+		recording.enable(ConnectionCloseEvent.class);
+		recording.enable(ConnectionAbandonedEvent.class);
+		recording.enable(ConnectionValidationEvent.class).withThreshold(Duration.ZERO);
+		recording.start();
+		
+		Connection released = connectionPoolImpl.getConnection();
+		connectionPoolImpl.releaseConnection(released);
+		Connection closed = connectionPoolImpl.getConnection();
+		closed.close();
+		Connection abandoned = connectionPoolImpl.getConnection();
+		Thread.sleep(2000);
+		assertTrue(abandoned.isClosed());
+		
+		recording.stop();
+		File dump = File.createTempFile("oconn", ".jfr");
+		try {
+			recording.dump(dump.toPath());
+			List<RecordedEvent> events = RecordingFile.readAllEvents(dump.toPath());
+			Set<String> eventNames = new HashSet<String>();
+			for(RecordedEvent event : events){
+				eventNames.add(event.getEventType().getName());
+			}
+			assertTrue(eventNames.contains("com.opower.connectionpool.ConnectionBorrow"));
+			assertTrue(eventNames.contains("com.opower.connectionpool.ConnectionRelease"));
+			assertTrue(eventNames.contains("com.opower.connectionpool.ConnectionCreate"));
+			assertTrue(eventNames.contains("com.opower.connectionpool.ConnectionClose"));
+			assertTrue(eventNames.contains("com.opower.connectionpool.ConnectionAbandoned"));
+			assertTrue(eventNames.contains("com.opower.connectionpool.ConnectionValidation"));
+		} finally {
+			recording.close();
+			dump.delete();
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package com.opower.connectionpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.junit.Test;
+
+/*
+ * Ensures getConnection calls nested inside withConnection share the thread's bound connection and that it only
+ * goes back to the pool once the outermost scope ends.
+ * 
+ * @author VinayG
+ */
+public class TestConnectionScope extends AbstractStubOConnectionPoolTest {
+
+	@Override
+	protected void configureDataSource(DataSource ds) {
+		ds.poolSize = 2;
+	}
+	
+	/* Ensures nested borrows, releases and closes reuse the bound connection without touching the pool. */
+	@Test
+	public void testNestedBorrowsShareConnection() throws Exception {
+		final StubDriver.StubConnectionHandler[] physical = new StubDriver.StubConnectionHandler[1];
+		Connection scoped = connectionPoolImpl.withConnection(new ConnectionWork<Connection>() {
+			public Connection execute(Connection connection) throws SQLException {
+				physical[0] = StubDriver.handlerOf(((OConnection) connection)._connection);
+				Connection nested = connectionPoolImpl.getConnection();
+				assertSame(connection, nested);
+				assertEquals(1, connectionPoolImpl.getNumberOfAvailableConnections());
+				
+				nested.createStatement();
+				connectionPoolImpl.releaseConnection(nested);
+				connectionPoolImpl.getConnection(ConnectionPriority.HIGH).close();
+				assertFalse(connection.isClosed());
+				assertFalse(physical[0].closed);
+				
+				Connection inner = connectionPoolImpl.withConnection(new ConnectionWork<Connection>() {
+					public Connection execute(Connection connection) throws SQLException {
+						return connection;
+					}
+				});
+				assertSame(connection, inner);
+				assertFalse(connection.isClosed());
+				assertEquals(1, connectionPoolImpl.getNumberOfAvailableConnections());
+				return connection;
+			}
+		});
+		assertTrue(scoped.isClosed());
+		assertFalse(physical[0].closed);
+		assertEquals(2, connectionPoolImpl.getNumberOfAvailableConnections());
+		
+		Connection unscoped = connectionPoolImpl.getConnection();
+		assertNotSame(scoped, unscoped);
+	}
+	
+	/* Ensures the connection is released when the work fails and is not shared with other threads. */
+	@Test
+	public void testReleasedOnFailure() throws Exception {
+		try {
+			connectionPoolImpl.withConnection(new ConnectionWork<Void>() {
+				public Void execute(Connection connection) throws SQLException {
+					final Connection[] otherThreads = new Connection[1];
+					Thread other = new Thread(new Runnable() {
+						public void run() {
+							try {
+								otherThreads[0] = connectionPoolImpl.getConnection();
+							} catch (SQLException e) {
+								//Asserted below.
+							}
+						}
+					});
+					other.start();
+					try {
+						other.join(5000);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					assertNotNull(otherThreads[0]);
+					assertNotSame(connection, otherThreads[0]);
+					connectionPoolImpl.releaseConnection(otherThreads[0]);
+					throw new SQLException("work failed");
+				}
+			});
+			fail("Should have thrown a SQLException");
+		} catch (SQLException e) {
+			//part of legit flow.
+		}
+		assertEquals(2, connectionPoolImpl.getNumberOfAvailableConnections());
+	}
+	
+	/* Ensures the bound connection stays with its scope when another thread releases or closes it. */
+	@Test
+	public void testReleaseFromOtherThreadKeepsScope() throws Exception {
+		Connection scoped = connectionPoolImpl.withConnection(new ConnectionWork<Connection>() {
+			public Connection execute(final Connection connection) throws SQLException {
+				Thread other = new Thread(new Runnable() {
+					public void run() {
+						try {
+							connectionPoolImpl.releaseConnection(connection);
+							connection.close();
+						} catch (SQLException e) {
+							//Asserted below.
+						}
+					}
+				});
+				other.start();
+				try {
+					other.join(5000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				assertFalse(connection.isClosed());
+				assertEquals(1, connectionPoolImpl.getNumberOfAvailableConnections());
+				assertSame(connection, connectionPoolImpl.getConnection());
+				return connection;
+			}
+		});
+		assertTrue(scoped.isClosed());
+		assertEquals(2, connectionPoolImpl.getNumberOfAvailableConnections());
+	}
+}
@@ -0,0 +1,87 @@
+package com.opower.connectionpool;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+
+import org.junit.Test;
+
+/*
+ * Ensures new connections run the init SQL and prepare the warm statements before borrowers can see them, and that
+ * borrowers reuse the warm statements.
+ * 
+ * @author VinayG
+ */
+public class TestConnectionWarmUp extends AbstractStubOConnectionPoolTest {
+
+	private static final String INIT_SQL = "set search_path to app";
+	private static final String WARM_SQL = "select name from country where code = ?";
+	
+	@Override
+	protected void configureDataSource(DataSource ds) {
+		ds.poolSize = 2;
+		ds.url += ";record=true";
+		ds.initSql = new String[]{INIT_SQL};
+		ds.warmStatements = new String[]{WARM_SQL};
+	}
+	
+	private static StubDriver.StubConnectionHandler physicalOf(Connection connection) {
+		return StubDriver.handlerOf(((OConnection) connection)._connection);
+	}
+	
+	/* Ensures every connection handed out has already been initialized and its statements prepared. */
+	@Test
+	public void testConnectionsWarmBeforeBorrow() throws Exception {
+		for(int i = 0; i < 2; i++){
+			StubDriver.StubConnectionHandler physical = physicalOf(connectionPoolImpl.getConnection());
+			assertEquals(1, physical.executedSql.size());
+			assertEquals(INIT_SQL, physical.executedSql.get(0));
+			assertEquals(1, physical.preparedSql.size());
+			assertEquals(WARM_SQL, physical.preparedSql.get(0));
+		}
+	}
+	
+	/* Ensures borrowers share the warm statement without preparing it again, closing only gives it back, and a second
+	 * statement for the same SQL within one borrow is prepared as usual. */
+	@Test
+	public void testWarmStatementReused() throws Exception {
+		Connection connection = connectionPoolImpl.getConnection();
+		connectionPoolImpl.getConnection();
+		StubDriver.StubConnectionHandler physical = physicalOf(connection);
+		
+		PreparedStatement warm = connection.prepareStatement(WARM_SQL);
+		warm.setString(1, "US");
+		assertEquals("[US]", warm.executeQuery().getObject("parameters"));
+		PreparedStatement cold = connection.prepareStatement(WARM_SQL);
+		assertEquals(2, physical.preparedSql.size());
+		
+		warm.close();
+		assertTrue(warm.isClosed());
+		assertFalse(cold.isClosed());
+		PreparedStatement again = connection.prepareStatement(WARM_SQL);
+		assertEquals("[]", again.executeQuery().getObject("parameters"));
+		assertEquals(2, physical.preparedSql.size());
+		
+		connectionPoolImpl.releaseConnection(connection);
+		assertTrue(again.isClosed());
+		connection = connectionPoolImpl.getConnection();
+		assertSame(physical, physicalOf(connection));
+		assertFalse(connection.prepareStatement(WARM_SQL).isClosed());
+		assertEquals(2, physical.preparedSql.size());
+	}
+	
+	/* Ensures the replacement for a connection closed by its borrower, opened in the background, is warmed up too. */
+	@Test
+	public void testReplacementWarm() throws Exception {
+		Connection closed = connectionPoolImpl.getConnection();
+		closed.close();
+		long deadline = System.currentTimeMillis() + 5000;
+		while(connectionPoolImpl.getNumberOfAvailableConnections() < 2 && System.currentTimeMillis() < deadline){
+			Thread.sleep(20);
+		}
+		assertEquals(2, connectionPoolImpl.getNumberOfAvailableConnections());
+		Connection first = connectionPoolImpl.getConnection();
+		Connection second = connectionPoolImpl.getConnection();
+		assertEquals(INIT_SQL, physicalOf(first).executedSql.get(0));
+		assertEquals(INIT_SQL, physicalOf(second).executedSql.get(0));
+	}
+}
@@ -0,0 +1,126 @@
+package com.opower.connectionpool;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/*
+ * Ensures a fatal failure on one connection fails the whole pool over when failover detection is on, and that
+ * nothing changes when it is off or the failure is not fatal.
+ * 
+ * @author VinayG
+ */
+public class TestFastFailover extends AbstractStubOConnectionPoolTest {
+
+	private static final int POOL_SIZE = 4;
+	
+	@Override
+	protected void configureDataSource(DataSource ds) {
+		ds.poolSize = POOL_SIZE;
+		ds.maxIdleTimeInSeconds = 60;
+		ds.failoverDetection = !getName().equals("testDetectionOff");
+	}
+	
+	private static StubDriver.StubConnectionHandler physicalOf(Connection connection) {
+		return StubDriver.handlerOf(((OConnection) connection)._connection);
+	}
+	
+	/* Runs a query on the connection after killing its socket, expecting it to fail. */
+	private static void failQuery(Connection connection) throws Exception {
+		Statement statement = connection.createStatement();
+		physicalOf(connection).broken = true;
+		try {
+			statement.executeQuery("select 1");
+			fail("Should have thrown a SQLException");
+		} catch (SQLException e) {
+			//part of legit flow.
+		}
+	}
+	
+	private void awaitAvailableConnections(int expected) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while(connectionPoolImpl.getNumberOfAvailableConnections() != expected && System.currentTimeMillis() < deadline){
+			Thread.sleep(10);
+		}
+		assertEquals(expected, connectionPoolImpl.getNumberOfAvailableConnections());
+	}
+	
+	/* Ensures the idle connections are replaced right away, borrowed ones when released, and that further failures
+	 * from the same outage do not fail over again. */
+	@Test
+	public void testFatalFailureFailsOver() throws Exception {
+		Set<StubDriver.StubConnectionHandler> originals = new HashSet<StubDriver.StubConnectionHandler>();
+		Connection[] connections = new Connection[POOL_SIZE];
+		for(int i = 0; i < POOL_SIZE; i++){
+			connections[i] = connectionPoolImpl.getConnection();
+			originals.add(physicalOf(connections[i]));
+		}
+		for(int i = 2; i < POOL_SIZE; i++){
+			connectionPoolImpl.releaseConnection(connections[i]);
+		}
+		StubDriver.StubConnectionHandler stillBorrowed = physicalOf(connections[1]);
+		
+		failQuery(connections[0]);
+		failQuery(connections[1]);
+		assertEquals(1, connectionPoolImpl.getNumberOfFailovers());
+		awaitAvailableConnections(POOL_SIZE - 2);
+		
+		connectionPoolImpl.releaseConnection(connections[0]);
+		connectionPoolImpl.releaseConnection(connections[1]);
+		awaitAvailableConnections(POOL_SIZE);
+		assertTrue(stillBorrowed.closed);
+		for(int i = 0; i < POOL_SIZE; i++){
+			connections[i] = connectionPoolImpl.getConnection();
+			assertFalse(originals.contains(physicalOf(connections[i])));
+		}
+		for(int i = 0; i < POOL_SIZE; i++){
+			connectionPoolImpl.releaseConnection(connections[i]);
+		}
+		assertEquals(1, connectionPoolImpl.getNumberOfFailovers());
+	}
+	
+	/* Ensures a fatal failure raised by the connection itself, rather than by one of its statements, fails over too. */
+	@Test
+	public void testConnectionFailureFailsOver() throws Exception {
+		Connection connection = connectionPoolImpl.getConnection();
+		physicalOf(connection).broken = true;
+		try {
+			connection.prepareCall("{call refresh()}", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			fail("Should have thrown a SQLException");
+		} catch (SQLException e) {
+			//part of legit flow.
+		}
+		assertEquals(1, connectionPoolImpl.getNumberOfFailovers());
+		connectionPoolImpl.releaseConnection(connection);
+	}
+	
+	/* Ensures the pool only finds out connection by connection when detection is off. */
+	@Test
+	public void testDetectionOff() throws Exception {
+		Connection connection = connectionPoolImpl.getConnection();
+		failQuery(connection);
+		assertEquals(0, connectionPoolImpl.getNumberOfFailovers());
+		assertEquals(POOL_SIZE - 1, connectionPoolImpl.getNumberOfAvailableConnections());
+		connectionPoolImpl.releaseConnection(connection);
+	}
+	
+	/* Ensures only connection exceptions and server shutdowns count as fatal, wherever they are in the chain. */
+	@Test
+	public void testFatalStates() throws Exception {
+		assertTrue(FailoverDetection.isFatal(new SQLException("reset", "08006")));
+		assertTrue(FailoverDetection.isFatal(new SQLException("terminating connection", "57P01")));
+		assertTrue(FailoverDetection.isFatal(new SQLException("starting up", "57P03")));
+		assertFalse(FailoverDetection.isFatal(new SQLException("duplicate key", "23505")));
+		assertFalse(FailoverDetection.isFatal(new SQLException("no state")));
+		
+		SQLException batchFailure = new SQLException("batch failed", "XX000");
+		batchFailure.setNextException(new SQLException("closed", "08003"));
+		assertTrue(FailoverDetection.isFatal(batchFailure));
+		assertTrue(FailoverDetection.isFatal(new SQLException("wrapped", null, new SQLException("reset", "08006"))));
+	}
+}
@@ -0,0 +1,157 @@
+package com.opower.connectionpool;
+
+import java.sql.Connection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/*
+ * Ensures drain and close shut the pool down: new borrows are refused, borrowed connections are waited for up to the
+ * deadline and every physical connection is closed.
+ *
+ * @author VinayG
+ */
+public class TestGracefulDrain extends AbstractStubOConnectionPoolTest {
+
+	@Override
+	protected void configureDataSource(DataSource ds) {
+		ds.poolSize = 2;
+		ds.tenantMaxConnections = 1;
+	}
+
+	/* Releases the connection from another thread after the delay. */
+	private Thread releaseLater(final Connection connection, final long delayMillis) {
+		Thread releaser = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(delayMillis);
+					connectionPoolImpl.releaseConnection(connection);
+				} catch (Exception e) {
+					//The test checks the outcome.
+				}
+			}
+		});
+		releaser.start();
+		return releaser;
+	}
+
+	/* Ensures drain waits for a borrowed connection to come back, then closes every connection and refuses borrows. */
+	@Test
+	public void testDrainWaitsForBorrowedConnections() throws Exception {
+		Connection connection = connectionPoolImpl.getConnection();
+		Thread releaser = releaseLater(connection, 200);
+
+		long startNanos = System.nanoTime();
+		assertTrue(connectionPoolImpl.drain(5, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - startNanos >= TimeUnit.MILLISECONDS.toNanos(150));
+		releaser.join();
+		assertTrue(connectionPoolImpl.isClosed());
+		assertEquals(0, StubDriver.openConnectionsFor(dataSource.url));
+
+		try {
+			connectionPoolImpl.getConnection();
+			fail("The pool is closed.");
+		} catch (IllegalStateException e) {
+			//part of legit flow.
+		}
+	}
+
+	/* Ensures a connection still borrowed at the deadline is reclaimed and closed, and its handle becomes stale. */
+	@Test
+	public void testDrainReclaimsAfterDeadline() throws Exception {
+		Connection connection = connectionPoolImpl.getConnection();
+
+		assertFalse(connectionPoolImpl.drain(100, TimeUnit.MILLISECONDS));
+		assertEquals(0, StubDriver.openConnectionsFor(dataSource.url));
+		assertTrue(connection.isClosed());
+	}
+
+	/* Starts a borrower for the tenant that waits up to five seconds for a connection and records why it failed. */
+	private Thread startWaiter(final String tenant, final AtomicReference<Exception> failure) {
+		Thread waiter = new Thread(new Runnable() {
+			public void run() {
+				try {
+					connectionPoolImpl.getConnection(tenant, ConnectionPriority.NORMAL, 5, TimeUnit.SECONDS);
+				} catch (Exception e) {
+					failure.set(e);
+				}
+			}
+		});
+		waiter.start();
+		return waiter;
+	}
+
+	/* Waits until the borrower is parked waiting for a connection. */
+	private void awaitWaiting(Thread waiter) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while(waiter.getState() != Thread.State.TIMED_WAITING && System.currentTimeMillis() < deadline){
+			Thread.sleep(10);
+		}
+		assertEquals(Thread.State.TIMED_WAITING, waiter.getState());
+	}
+
+	/* Starts draining the pool from another thread. */
+	private Thread drainLater() {
+		Thread drainer = new Thread(new Runnable() {
+			public void run() {
+				try {
+					connectionPoolImpl.drain(5, TimeUnit.SECONDS);
+				} catch (Exception e) {
+					//The test checks the outcome.
+				}
+			}
+		});
+		drainer.start();
+		return drainer;
+	}
+
+	/* Ensures the parked borrower is turned away while the borrowed connections are still out, then lets drain finish. */
+	private void assertTurnedAway(Thread waiter, AtomicReference<Exception> failure, Connection... borrowed)
+			throws Exception {
+		awaitWaiting(waiter);
+		Thread drainer = drainLater();
+		waiter.join(1000);
+		assertFalse(waiter.isAlive());
+		assertTrue(failure.get() instanceof IllegalStateException);
+		assertEquals("The pool has been closed.", failure.get().getMessage());
+
+		for(Connection connection : borrowed){
+			connectionPoolImpl.releaseConnection(connection);
+		}
+		drainer.join(5000);
+		assertTrue(connectionPoolImpl.isClosed());
+	}
+
+	/* Ensures a borrower waiting for a connection is turned away as soon as the pool starts closing. */
+	@Test
+	public void testWaitingBorrowerTurnedAway() throws Exception {
+		Connection[] connections = getAllConnections();
+		AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		Thread waiter = startWaiter(null, failure);
+
+		assertTurnedAway(waiter, failure, connections);
+	}
+
+	/* Ensures a borrower waiting on its tenant's limit is turned away as soon as the pool starts closing. */
+	@Test
+	public void testWaitingTenantBorrowerTurnedAway() throws Exception {
+		Connection connection = connectionPoolImpl.getConnection("alpha");
+		AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		Thread waiter = startWaiter("alpha", failure);
+
+		assertTurnedAway(waiter, failure, connection);
+	}
+
+	/* Ensures the pool can be closed with try-with-resources, and closing it again does nothing. */
+	@Test
+	public void testCloseIsIdempotent() throws Exception {
+		try(OConnectionPoolImpl pool = connectionPoolImpl){
+			connectionPoolImpl.releaseConnection(pool.getConnection());
+		}
+		assertTrue(connectionPoolImpl.isClosed());
+		assertEquals(0, StubDriver.openConnectionsFor(dataSource.url));
+		connectionPoolImpl.close();
+		assertTrue(connectionPoolImpl.drain(0, TimeUnit.SECONDS));
+	}
+}
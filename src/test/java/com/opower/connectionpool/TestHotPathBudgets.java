@@ -0,0 +1,118 @@
+package com.opower.connectionpool;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/*
+ * Guards the borrow/execute/release path against regressions in the memory it allocates and the monitor contention
+ * it causes. Both are measured against the stub driver and compared with a budget recorded from the current code with
+ * headroom. When a change legitimately moves a figure, re-record the budget from the figure in the failure message
+ * rather than raising it blindly.
+ * 
+ * Runs under the JUnit 4 runner (rather than as a TestCase) so that a JVM without the counters reports it as skipped.
+ * 
+ * @author VinayG
+ */
+@RunWith(JUnit4.class)
+public class TestHotPathBudgets extends AbstractStubOConnectionPoolTest {
+
+	/* Bytes allocated by one cycle on the borrowing thread, stub driver included. Recorded at 648, so an extra object
+	 * per cycle trips this. */
+	private static final long ALLOCATION_BUDGET_IN_BYTES = 704;
+	
+	/* Times a borrowing thread blocks entering a monitor per cycle, with as many threads as connections so nobody
+	 * waits for a connection. Recorded at 0.0005 on one core; a path that gains a contended lock blocks on a sizeable
+	 * share of cycles and trips this. */
+	private static final double CONTENTION_BUDGET_IN_BLOCKS = 0.05;
+	
+	private static final int POOL_SIZE = 8;
+	
+	private static final int WARM_UP_CYCLES = 20000;
+	private static final int MEASURED_CYCLES = 20000;
+	
+	@Override
+	protected void configureDataSource(DataSource ds) {
+		ds.poolSize = POOL_SIZE;
+		ds.maxIdleTimeInSeconds = 60;
+	}
+	
+	/* Borrows a connection, runs a query on it and releases it. */
+	private void cycle() throws Exception {
+		Connection connection = connectionPoolImpl.getConnection();
+		Statement statement = connection.createStatement();
+		statement.executeQuery("select 1").close();
+		statement.close();
+		connectionPoolImpl.releaseConnection(connection);
+	}
+	
+	/* Ensures a cycle allocates no more than its budget, once the JIT has warmed up. Reported as skipped on JVMs
+	 * without per-thread allocation counters. */
+	@Test
+	public void testAllocationPerCycle() throws Exception {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled());
+		for(int i = 0; i < WARM_UP_CYCLES; i++){
+			cycle();
+		}
+		long threadId = Thread.currentThread().getId();
+		long before = allocations.getThreadAllocatedBytes(threadId);
+		for(int i = 0; i < MEASURED_CYCLES; i++){
+			cycle();
+		}
+		long bytesPerCycle = (allocations.getThreadAllocatedBytes(threadId) - before) / MEASURED_CYCLES;
+		assertTrue("A cycle allocated " + bytesPerCycle + " bytes, over the budget of " + ALLOCATION_BUDGET_IN_BYTES,
+				bytesPerCycle <= ALLOCATION_BUDGET_IN_BYTES);
+	}
+	
+	/* Ensures concurrent cycles block on monitors no more often than the budget allows. */
+	@Test
+	public void testContentionPerCycle() throws Exception {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicLong blockedCount = new AtomicLong();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] workers = new Thread[POOL_SIZE];
+		for(int i = 0; i < workers.length; i++){
+			workers[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+						for(int j = 0; j < WARM_UP_CYCLES / POOL_SIZE; j++){
+							cycle();
+						}
+						long before = threads.getThreadInfo(Thread.currentThread().getId()).getBlockedCount();
+						for(int j = 0; j < MEASURED_CYCLES; j++){
+							cycle();
+						}
+						blockedCount.addAndGet(threads.getThreadInfo(Thread.currentThread().getId()).getBlockedCount() - before);
+					} catch (Throwable e) {
+						failure.set(e);
+					}
+				}
+			});
+			workers[i].start();
+		}
+		start.countDown();
+		for(int i = 0; i < workers.length; i++){
+			workers[i].join();
+		}
+		if(failure.get() != null){
+			throw new AssertionError(failure.get());
+		}
+		double blocksPerCycle = (double) blockedCount.get() / (MEASURED_CYCLES * POOL_SIZE);
+		assertTrue("A cycle blocked " + blocksPerCycle + " times, over the budget of " + CONTENTION_BUDGET_IN_BLOCKS,
+				blocksPerCycle <= CONTENTION_BUDGET_IN_BLOCKS);
+	}
+}
@@ -0,0 +1,58 @@
+package com.opower.connectionpool;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/*
+ * Drives a thousand concurrent borrowers against a pool backed by a slow and failing stub database and ensures the
+ * pool never lends a connection twice and leaks none.
+ * 
+ * @author VinayG
+ */
+public class TestLoadSimulation extends AbstractStubOConnectionPoolTest {
+
+	private static final int POOL_SIZE = 10;
+	
+	private String url;
+	
+	@Override
+	protected void configureDataSource(DataSource ds) {
+		url = StubDriver.URL_PREFIX + "load;connectLatencyMillis=5;queryLatency=exponential:1;socketDeathRate=0.002;"
+				+ "closeLatencyMillis=5;seed=42";
+		ds.url = url;
+		ds.poolSize = POOL_SIZE;
+		ds.maxIdleTimeInSeconds = 60;
+	}
+	
+	/* Ensures the invariants hold under load with socket deaths. */
+	@Test
+	public void testInvariantsUnderLoad() throws Exception {
+		LoadSimulator.Result result = new LoadSimulator(connectionPoolImpl, url, POOL_SIZE, 1000,
+				TimeUnit.SECONDS.toMillis(2), TimeUnit.SECONDS.toMillis(5)).run();
+		assertTrue(result.toString(), result.borrows > 0);
+		assertEquals(result.toString(), 0, result.doubleLendings);
+		assertEquals(result.toString(), 0, result.leakedConnections);
+		assertEquals(result.toString(), 0, result.leakedPhysicalConnections);
+		assertTrue(result.toString(), result.p50WaitMillis <= result.p99WaitMillis);
+	}
+	
+	/* Ensures the stub's latencies and faults follow the url options. */
+	@Test
+	public void testStubProfile() throws Exception {
+		StubProfile profile = StubProfile.parse(StubDriver.URL_PREFIX + "x;queryLatency=uniform:2:4;socketDeathRate=0.5");
+		Random random = new Random(1);
+		for(int i = 0; i < 100; i++){
+			long latency = profile.sampleQueryLatencyNanos(random);
+			assertTrue(latency >= TimeUnit.MILLISECONDS.toNanos(2) && latency <= TimeUnit.MILLISECONDS.toNanos(4));
+		}
+		assertEquals(0.5, profile.socketDeathRate);
+		try {
+			StubProfile.parse(StubDriver.URL_PREFIX + "x;unknown=1");
+			fail("Should have thrown a IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			//part of legit flow.
+		}
+	}
+}
@@ -3,6 +3,7 @@ package com.opower.connectionpool;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 
@@ -72,7 +73,8 @@ public class TestOConnectionPoolImpl extends AbstractTestOConnectionPoolImpl{
 				assertEquals(connArr[i].isClosed(), true);
 			}
 			
-			Connection newConn = connectionPoolImpl.getConnection();
+			//Replacements for closed connections are opened in the background.
+			Connection newConn = connectionPoolImpl.getConnection(ConnectionPriority.NORMAL, 5, TimeUnit.SECONDS);
 			assertNotNull(newConn);
 			assertEquals(newConn.isClosed(), false);
 		} catch (SQLException e) {
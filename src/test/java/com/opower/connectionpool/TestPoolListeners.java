@@ -0,0 +1,201 @@
+package com.opower.connectionpool;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/*
+ * Ensures the pool's events reach its listeners through the ring buffer, that a full buffer drops or blocks as
+ * configured and that publishing allocates nothing.
+ * 
+ * @author VinayG
+ */
+public class TestPoolListeners extends AbstractStubOConnectionPoolTest {
+
+	@Override
+	protected void configureDataSource(DataSource ds) {
+		ds.poolSize = 1;
+		if(getName().equals("testBlockingListenerCallsBackIntoPool")){
+			ds.listenerBufferSize = 1;
+			ds.listenerBlockWhenFull = true;
+		}
+	}
+	
+	/* Records the events it receives as strings, and can be held up until released. */
+	private static class RecordingListener implements ConnectionPoolListener {
+		final List<String> received = new ArrayList<String>();
+		final CountDownLatch proceed;
+		
+		RecordingListener(CountDownLatch proceed){
+			this.proceed = proceed;
+		}
+		
+		private synchronized void record(String event) {
+			try {
+				proceed.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			received.add(event);
+			notifyAll();
+		}
+		
+		synchronized List<String> await(int events) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000;
+			while(received.size() < events && System.currentTimeMillis() < deadline){
+				wait(50);
+			}
+			return new ArrayList<String>(received);
+		}
+		
+		public void connectionBorrowed(long nanoTime, long connectionId, long waitNanos) {
+			record("borrowed " + connectionId);
+		}
+		
+		public void connectionReleased(long nanoTime, long connectionId, long holdNanos, boolean closedByClient) {
+			record((closedByClient ? "closed " : "released ") + connectionId);
+		}
+		
+		public void connectionCreated(long nanoTime, long connectionId) {
+			record("created " + connectionId);
+		}
+		
+		public void connectionDestroyed(long nanoTime, long connectionId, String reason) {
+			record("destroyed " + connectionId + " " + reason);
+		}
+		
+		public void connectionAbandoned(long nanoTime, long connectionId, long holdNanos) {
+			record("abandoned " + connectionId);
+		}
+	}
+	
+	/* Ensures borrow, release, close and the replacement's creation are delivered in order. */
+	@Test
+	public void testEventsReachListener() throws Exception {
+		RecordingListener listener = new RecordingListener(new CountDownLatch(0));
+		connectionPoolImpl.addListener(listener);
+		Connection connection = connectionPoolImpl.getConnection();
+		long id = ((OConnection) connection).getConnectionId();
+		connectionPoolImpl.releaseConnection(connection);
+		connection = connectionPoolImpl.getConnection();
+		connection.close();
+		
+		List<String> received = listener.await(6);
+		assertEquals("borrowed " + id, received.get(0));
+		assertEquals("released " + id, received.get(1));
+		assertEquals("borrowed " + id, received.get(2));
+		assertEquals("destroyed " + id + " closed by client", received.get(3));
+		assertEquals("closed " + id, received.get(4));
+		assertTrue(received.get(5).startsWith("created "));
+		assertEquals(0, connectionPoolImpl.getDroppedEvents());
+	}
+	
+	/* Ensures events published into a full ring are dropped and counted. */
+	@Test
+	public void testDropWhenFull() throws Exception {
+		ConnectionPoolEventRing ring = new ConnectionPoolEventRing(4);
+		CountDownLatch proceed = new CountDownLatch(1);
+		RecordingListener listener = new RecordingListener(proceed);
+		ring.addListener(listener);
+		for(int i = 0; i < 10; i++){
+			ring.publish(ConnectionPoolEventRing.CREATED, i, 0, false, null, false);
+		}
+		assertEquals(6, ring.getDroppedEvents());
+		proceed.countDown();
+		List<String> received = listener.await(4);
+		assertEquals(4, received.size());
+		assertEquals("created 3", received.get(3));
+		assertTrue(ring.stop(1, TimeUnit.SECONDS));
+	}
+	
+	/* Ensures a publisher waits for room in a full ring rather than drop its event when asked to. */
+	@Test
+	public void testBlockWhenFull() throws Exception {
+		final ConnectionPoolEventRing ring = new ConnectionPoolEventRing(2);
+		CountDownLatch proceed = new CountDownLatch(1);
+		RecordingListener listener = new RecordingListener(proceed);
+		ring.addListener(listener);
+		Thread publisher = new Thread(new Runnable() {
+			public void run() {
+				for(int i = 0; i < 5; i++){
+					ring.publish(ConnectionPoolEventRing.CREATED, i, 0, false, null, true);
+				}
+			}
+		});
+		publisher.start();
+		publisher.join(200);
+		assertTrue(publisher.isAlive());
+		proceed.countDown();
+		publisher.join(5000);
+		assertFalse(publisher.isAlive());
+		assertEquals(5, listener.await(5).size());
+		assertEquals(0, ring.getDroppedEvents());
+		assertTrue(ring.stop(1, TimeUnit.SECONDS));
+	}
+	
+	/* Ensures a pool that waits for room in a full buffer never does so holding its monitor, which a listener calling
+	 * back into the pool would otherwise deadlock on. */
+	@Test
+	public void testBlockingListenerCallsBackIntoPool() throws Exception {
+		connectionPoolImpl.addListener(new RecordingListener(new CountDownLatch(0)) {
+			@Override
+			public void connectionReleased(long nanoTime, long connectionId, long holdNanos, boolean closedByClient) {
+				connectionPoolImpl.getNumberOfAvailableConnections();
+			}
+			
+			@Override
+			public void connectionBorrowed(long nanoTime, long connectionId, long waitNanos) {
+				connectionPoolImpl.getNumberOfAvailableConnections();
+			}
+		});
+		Thread borrower = new Thread(new Runnable() {
+			public void run() {
+				try {
+					for(int i = 0; i < 200; i++){
+						connectionPoolImpl.releaseConnection(connectionPoolImpl.getConnection());
+					}
+				} catch (Exception e) {
+					//The test checks the borrower finished.
+				}
+			}
+		});
+		borrower.start();
+		borrower.join(5000);
+		assertFalse(borrower.isAlive());
+		assertEquals(0, connectionPoolImpl.getDroppedEvents());
+	}
+	
+	/* Ensures publishing allocates nothing on the publishing thread. */
+	@Test
+	public void testPublishingAllocatesNothing() throws Exception {
+		if(!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)){
+			return;
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if(!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()){
+			return;
+		}
+		ConnectionPoolEventRing ring = new ConnectionPoolEventRing(1024);
+		ring.addListener(new RecordingListener(new CountDownLatch(0)) {
+			@Override
+			public void connectionReleased(long nanoTime, long connectionId, long holdNanos, boolean closedByClient) {
+			}
+		});
+		for(int i = 0; i < 100000; i++){
+			ring.publish(ConnectionPoolEventRing.RELEASED, i, i, false, null, false);
+		}
+		long threadId = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(threadId);
+		for(int i = 0; i < 100000; i++){
+			ring.publish(ConnectionPoolEventRing.RELEASED, i, i, false, null, false);
+		}
+		long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+		assertTrue("Publishing allocated " + allocated + " bytes", allocated < 1024);
+		assertTrue(ring.stop(1, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,160 @@
+package com.opower.connectionpool;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import com.opower.connectionpool.StubDriver.StubConnectionHandler;
+
+/*
+ * Ensures the pool can be resized and rolled over to new settings while it is in use.
+ * 
+ * @author VinayG
+ */
+public class TestPoolReconfiguration extends AbstractStubOConnectionPoolTest {
+
+	private static final long WAIT_FOR_BACKGROUND_WORK_IN_MILLIS = 5000;
+	
+	@Override
+	protected void configureDataSource(DataSource ds) {
+		ds.poolSize = 2;
+	}
+	
+	/* Returns the current settings as properties, ready to be modified and applied. */
+	private Properties currentProperties() {
+		Properties properties = new Properties();
+		properties.setProperty("datasource.driver", dataSource.driver);
+		properties.setProperty("datasource.url", dataSource.url);
+		if(dataSource.username != null){
+			properties.setProperty("datasource.username", dataSource.username);
+		}
+		if(dataSource.password != null){
+			properties.setProperty("datasource.password", dataSource.password);
+		}
+		properties.setProperty("datasource.poolsize", String.valueOf(dataSource.poolSize));
+		properties.setProperty("datasource.maxIdleTimeInSeconds", String.valueOf(dataSource.maxIdleTimeInSeconds));
+		return properties;
+	}
+	
+	/* Polls until the pool has the expected number of available connections. */
+	private void waitForAvailableConnections(int expected) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT_FOR_BACKGROUND_WORK_IN_MILLIS;
+		while(connectionPoolImpl.getNumberOfAvailableConnections() != expected && System.currentTimeMillis() < deadline){
+			Thread.sleep(20);
+		}
+		assertEquals(expected, connectionPoolImpl.getNumberOfAvailableConnections());
+	}
+	
+	/* Ensures growing the pool opens the extra connections in the background. */
+	@Test
+	public void testGrowPool() throws Exception {
+		Properties properties = currentProperties();
+		properties.setProperty("datasource.poolsize", "4");
+		connectionPoolImpl.reconfigure(properties);
+		waitForAvailableConnections(4);
+		assertEquals(4, dataSource.poolSize);
+	}
+	
+	/* Ensures shrinking the pool retires idle connections now and borrowed ones once they are released. */
+	@Test
+	public void testShrinkPool() throws Exception {
+		Connection borrowed = connectionPoolImpl.getConnection();
+		Properties properties = currentProperties();
+		properties.setProperty("datasource.poolsize", "1");
+		connectionPoolImpl.reconfigure(properties);
+		assertEquals(0, connectionPoolImpl.getNumberOfAvailableConnections());
+		
+		connectionPoolImpl.releaseConnection(borrowed);
+		assertEquals(1, connectionPoolImpl.getNumberOfAvailableConnections());
+	}
+	
+	/* Ensures a new url is rolled out to idle connections in the background and to borrowed ones on release,
+	 * while borrowers keep getting connections. */
+	@Test
+	public void testRollConnectionsToNewUrl() throws Exception {
+		Connection borrowed = connectionPoolImpl.getConnection();
+		String newUrl = StubDriver.URL_PREFIX + "rolled";
+		Properties properties = currentProperties();
+		properties.setProperty("datasource.url", newUrl);
+		connectionPoolImpl.reconfigure(properties);
+		Connection borrowedDuringRoll = connectionPoolImpl.getConnection();
+		assertNotNull(borrowedDuringRoll);
+		
+		connectionPoolImpl.releaseConnection(borrowed);
+		connectionPoolImpl.releaseConnection(borrowedDuringRoll);
+		Thread.sleep(500);
+		Connection[] connections = getAllConnections(2);
+		for(int i = 0; i < connections.length; i++){
+			Connection physical = ((OConnection) connections[i])._connection;
+			assertEquals(newUrl, StubDriver.<StubConnectionHandler>handlerOf(physical).url);
+		}
+		assertTrue(((OConnection) borrowed)._connection.isClosed());
+	}
+	
+	/* Ensures malformed settings are rejected and leave the pool untouched. */
+	@Test
+	public void testRejectMalformedConfiguration() {
+		Properties properties = currentProperties();
+		properties.setProperty("datasource.poolsize", "zero");
+		try {
+			connectionPoolImpl.reconfigure(properties);
+			fail("Should have thrown a IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			//part of legit flow.
+		}
+		assertEquals(2, dataSource.poolSize);
+	}
+	
+	/* Ensures negative timeouts and intervals are rejected rather than applied to every borrow. */
+	@Test
+	public void testRejectNegativeTimeouts() {
+		int maxIdleTimeInSeconds = dataSource.maxIdleTimeInSeconds;
+		String[] keys = {"datasource.maxIdleTimeInSeconds", "datasource.validationTimeoutInSeconds",
+				"datasource.laneAgingIntervalInMillis", "datasource.drainTimeoutInSeconds"};
+		for(int i = 0; i < keys.length; i++){
+			Properties properties = currentProperties();
+			properties.setProperty(keys[i], "-1");
+			try {
+				connectionPoolImpl.reconfigure(properties);
+				fail("Should have thrown a IllegalArgumentException for " + keys[i]);
+			} catch (IllegalArgumentException e) {
+				//part of legit flow.
+			}
+		}
+		assertEquals(maxIdleTimeInSeconds, dataSource.maxIdleTimeInSeconds);
+	}
+	
+	/* Ensures changes to a watched properties file are applied. */
+	@Test
+	public void testWatchConfiguration() throws Exception {
+		File file = File.createTempFile("datasource", ".properties");
+		try {
+			connectionPoolImpl.watchConfiguration(file);
+			Properties properties = currentProperties();
+			properties.setProperty("datasource.poolsize", "3");
+			OutputStream out = new FileOutputStream(file);
+			try {
+				properties.store(out, null);
+			} finally {
+				out.close();
+			}
+			waitForAvailableConnections(3);
+		} finally {
+			connectionPoolImpl.stopWatchingConfiguration();
+			file.delete();
+		}
+	}
+	
+	private Connection[] getAllConnections(int count) throws SQLException {
+		Connection[] connections = new Connection[count];
+		for(int i = 0; i < count; i++){
+			connections[i] = connectionPoolImpl.getConnection();
+		}
+		return connections;
+	}
+}
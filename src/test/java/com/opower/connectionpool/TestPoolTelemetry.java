@@ -0,0 +1,109 @@
+package com.opower.connectionpool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+/*
+ * Ensures the telemetry keeps a rolling window of samples with sensible wait percentiles, and that the pool samples
+ * itself and publishes the telemetry over JMX and to CSV.
+ * 
+ * @author VinayG
+ */
+public class TestPoolTelemetry extends AbstractStubOConnectionPoolTest {
+
+	@Override
+	protected void configureDataSource(DataSource ds) {
+		ds.poolSize = 2;
+		ds.telemetryWindowInSeconds = 60;
+	}
+	
+	/* Ensures every wait falls in a bucket whose bound is at most 25% (plus a microsecond) above it. */
+	@Test
+	public void testWaitBuckets() throws Exception {
+		for(long waitNanos = 0; waitNanos < TimeUnit.SECONDS.toNanos(100); waitNanos = waitNanos * 3 / 2 + 777){
+			long bound = PoolTelemetry.upperBoundOf(PoolTelemetry.bucketOf(waitNanos));
+			assertTrue(waitNanos + " > " + bound, bound >= waitNanos);
+			assertTrue(waitNanos + " << " + bound, bound <= waitNanos * 5 / 4 + 1000);
+		}
+	}
+	
+	/* Ensures samples hold the interval's percentiles and the oldest are overwritten once the window is full. */
+	@Test
+	public void testSamplingWindow() throws Exception {
+		PoolTelemetry telemetry = new PoolTelemetry(3);
+		for(int i = 0; i < 98; i++){
+			telemetry.recordBorrow(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+		telemetry.recordBorrow(TimeUnit.MILLISECONDS.toNanos(100));
+		telemetry.recordBorrow(TimeUnit.MILLISECONDS.toNanos(100));
+		telemetry.recordCreationFailure();
+		telemetry.sample(1, 2, 3);
+		
+		PoolTelemetryHistory history = telemetry.getHistory();
+		assertEquals(1, history.size());
+		assertEquals(1, history.getIdleConnections(0));
+		assertEquals(2, history.getActiveConnections(0));
+		assertEquals(3, history.getWaiters(0));
+		assertEquals(1, history.getCreationFailures(0));
+		assertTrue(history.getBorrowsPerSecond(0) > 0);
+		assertTrue(history.getP50WaitNanos(0) >= TimeUnit.MILLISECONDS.toNanos(1));
+		assertTrue(history.getP50WaitNanos(0) <= TimeUnit.MICROSECONDS.toNanos(1250));
+		assertTrue(history.getP99WaitNanos(0) >= TimeUnit.MILLISECONDS.toNanos(100));
+		assertTrue(history.getP99WaitNanos(0) <= TimeUnit.MILLISECONDS.toNanos(125));
+		
+		for(int i = 2; i <= 5; i++){
+			telemetry.sample(i, 0, 0);
+		}
+		history = telemetry.getHistory();
+		assertEquals(3, history.size());
+		assertEquals(3, history.getIdleConnections(0));
+		assertEquals(5, history.getIdleConnections(2));
+		assertEquals(0, history.getCreationFailures(2));
+		assertEquals(0, history.getP99WaitNanos(2));
+		assertEquals(5, telemetry.getIdleConnections());
+	}
+	
+	/* Ensures the pool samples itself and its telemetry can be read over JMX and dumped as CSV. */
+	@Test
+	public void testPoolTelemetry() throws Exception {
+		Connection connection = connectionPoolImpl.getConnection();
+		long deadline = System.currentTimeMillis() + 5000;
+		while(connectionPoolImpl.getTelemetry().size() == 0 && System.currentTimeMillis() < deadline){
+			Thread.sleep(50);
+		}
+		connectionPoolImpl.releaseConnection(connection);
+		PoolTelemetryHistory history = connectionPoolImpl.getTelemetry();
+		assertTrue(history.size() > 0);
+		assertEquals(1, history.getActiveConnections(0));
+		assertEquals(1, history.getIdleConnections(0));
+		
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		Set<ObjectName> names = server.queryNames(new ObjectName("com.opower.connectionpool:type=PoolTelemetry,*"), null);
+		assertFalse(names.isEmpty());
+		assertNotNull(server.getAttribute(names.iterator().next(), "SampleCount"));
+		
+		File file = File.createTempFile("telemetry", ".csv");
+		try {
+			connectionPoolImpl.dumpTelemetry(file);
+			BufferedReader in = new BufferedReader(new FileReader(file));
+			try {
+				assertTrue(in.readLine().startsWith("timestampMillis,idleConnections"));
+				assertNotNull(in.readLine());
+			} finally {
+				in.close();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+}
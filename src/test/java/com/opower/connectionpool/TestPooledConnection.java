@@ -0,0 +1,66 @@
+package com.opower.connectionpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.junit.Test;
+
+/*
+ * Ensures the pool reuses one PooledConnection per physical connection and that handles from earlier borrows
+ * can never reach a connection lent to someone else.
+ * 
+ * @author VinayG
+ */
+public class TestPooledConnection extends AbstractStubOConnectionPoolTest {
+
+	@Override
+	protected void configureDataSource(DataSource ds) {
+		ds.poolSize = 1;
+		ds.maxIdleTimeInSeconds = 1;
+	}
+	
+	/* Ensures a released physical connection is lent out again through the same PooledConnection. */
+	@Test
+	public void testPooledConnectionIsReused() throws SQLException {
+		OConnection first = (OConnection) connectionPoolImpl.getConnection();
+		connectionPoolImpl.releaseConnection(first);
+		OConnection second = (OConnection) connectionPoolImpl.getConnection();
+		assertSame(first.pooledConnection, second.pooledConnection);
+		assertNotSame(first, second);
+	}
+	
+	/* Ensures a stale handle cannot touch the connection once it has been lent to the next borrower. */
+	@Test
+	public void testStaleHandleCannotReachNextBorrower() throws SQLException {
+		Connection stale = connectionPoolImpl.getConnection();
+		connectionPoolImpl.releaseConnection(stale);
+		Connection current = connectionPoolImpl.getConnection();
+		
+		assertTrue(stale.isClosed());
+		assertFalse(current.isClosed());
+		try {
+			stale.setAutoCommit(false);
+			fail("Should have thrown a IllegalStateException");
+		} catch (IllegalStateException e) {
+			//part of legit flow.
+		}
+		assertTrue(current.getAutoCommit());
+		
+		//Closing or releasing the stale handle must not end the current borrow.
+		stale.close();
+		connectionPoolImpl.releaseConnection(stale);
+		assertFalse(current.isClosed());
+		assertEquals(0, connectionPoolImpl.getNumberOfAvailableConnections());
+	}
+	
+	/* Ensures the handle of a reclaimed abandoned connection is stale for the next borrower too. */
+	@Test
+	public void testAbandonedHandleIsStale() throws Exception {
+		Connection abandoned = connectionPoolImpl.getConnection();
+		Thread.sleep(LITTLE_MORE_THAN_MAX_IDLE_TIME);
+		Connection current = connectionPoolImpl.getConnection();
+		assertTrue(abandoned.isClosed());
+		assertFalse(current.isClosed());
+		assertSame(((OConnection) abandoned).pooledConnection, ((OConnection) current).pooledConnection);
+	}
+}
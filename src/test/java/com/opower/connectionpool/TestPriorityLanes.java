@@ -0,0 +1,149 @@
+package com.opower.connectionpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/*
+ * Ensures borrowers wait for connections and are served according to their lane's priority, reservation and cap.
+ * 
+ * @author VinayG
+ */
+public class TestPriorityLanes extends AbstractStubOConnectionPoolTest {
+
+	private static final int NO_CAP = Integer.MAX_VALUE;
+	
+	/* The connections handed to the threads started by startWaiter, in the order they were served. */
+	private final List<Connection> servedOrderConnections = Collections.synchronizedList(new ArrayList<Connection>());
+	
+	@Override
+	protected void configureDataSource(DataSource ds) {
+		ds.poolSize = 2;
+		ds.laneReservedConnections = new int[]{1, 0, 0};
+		ds.laneMaxConnections = new int[]{NO_CAP, NO_CAP, 1};
+		ds.laneAgingIntervalInMillis = 60000;
+	}
+	
+	/* Releases the connection from another thread after the given delay. */
+	private void releaseLater(final Connection connection, final long delayInMillis) {
+		Thread releaser = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(delayInMillis);
+					connectionPoolImpl.releaseConnection(connection);
+				} catch (Exception e) {
+					//The borrower will time out and fail the test.
+				}
+			}
+		});
+		releaser.start();
+	}
+	
+	/* Ensures a borrower waits for a released connection and the wait is reported. */
+	@Test
+	public void testWaitForRelease() throws Exception {
+		Connection first = connectionPoolImpl.getConnection(ConnectionPriority.HIGH);
+		Connection second = connectionPoolImpl.getConnection(ConnectionPriority.HIGH);
+		releaseLater(first, 200);
+		Connection waited = connectionPoolImpl.getConnection(ConnectionPriority.HIGH, 5, TimeUnit.SECONDS);
+		assertFalse(waited.isClosed());
+		assertFalse(second.isClosed());
+		
+		LaneStatistics statistics = connectionPoolImpl.getLaneStatistics(ConnectionPriority.HIGH);
+		assertEquals(3, statistics.getBorrowCount());
+		assertEquals(1, statistics.getWaitCount());
+		assertTrue(statistics.getMaxWaitMillis() > 0);
+		assertEquals(2, statistics.getActiveConnections());
+	}
+	
+	/* Ensures a borrower that gets nothing in time gives up and the timeout is reported. */
+	@Test
+	public void testTimeout() throws Exception {
+		connectionPoolImpl.getConnection(ConnectionPriority.HIGH);
+		connectionPoolImpl.getConnection(ConnectionPriority.HIGH);
+		try {
+			connectionPoolImpl.getConnection(ConnectionPriority.NORMAL, 100, TimeUnit.MILLISECONDS);
+			fail("Should have thrown a IllegalStateException");
+		} catch (IllegalStateException e) {
+			//part of legit flow.
+		}
+		LaneStatistics statistics = connectionPoolImpl.getLaneStatistics(ConnectionPriority.NORMAL);
+		assertEquals(1, statistics.getTimeoutCount());
+		assertEquals(0, statistics.getWaitingBorrowers());
+	}
+	
+	/* Ensures other lanes cannot take the connection reserved for the HIGH lane. */
+	@Test
+	public void testReservedConnections() throws SQLException {
+		assertNotNull(connectionPoolImpl.getConnection(ConnectionPriority.NORMAL));
+		try {
+			connectionPoolImpl.getConnection(ConnectionPriority.NORMAL);
+			fail("Should have thrown a IllegalStateException");
+		} catch (IllegalStateException e) {
+			//part of legit flow.
+		}
+		assertNotNull(connectionPoolImpl.getConnection(ConnectionPriority.HIGH));
+	}
+	
+	/* Ensures a lane cannot borrow beyond its cap even when connections are idle. */
+	@Test
+	public void testMaxConnections() throws SQLException {
+		dataSource.laneReservedConnections = new int[]{0, 0, 0};
+		assertNotNull(connectionPoolImpl.getConnection(ConnectionPriority.LOW));
+		try {
+			connectionPoolImpl.getConnection(ConnectionPriority.LOW);
+			fail("Should have thrown a IllegalStateException");
+		} catch (IllegalStateException e) {
+			//part of legit flow.
+		}
+		assertEquals(1, connectionPoolImpl.getNumberOfAvailableConnections());
+	}
+	
+	/* Ensures waiters are served most urgent first, and that a long waiting LOW borrower ages past a new HIGH one. */
+	@Test
+	public void testPriorityOrderAndAging() throws Exception {
+		dataSource.laneReservedConnections = new int[]{0, 0, 0};
+		Connection first = connectionPoolImpl.getConnection(ConnectionPriority.HIGH);
+		connectionPoolImpl.getConnection(ConnectionPriority.HIGH);
+		List<ConnectionPriority> servedOrder = Collections.synchronizedList(new ArrayList<ConnectionPriority>());
+		
+		Thread low = startWaiter(ConnectionPriority.LOW, servedOrder);
+		Thread.sleep(100);
+		Thread high = startWaiter(ConnectionPriority.HIGH, servedOrder);
+		Thread.sleep(100);
+		connectionPoolImpl.releaseConnection(first);
+		high.join(5000);
+		assertEquals(ConnectionPriority.HIGH, servedOrder.get(0));
+		
+		dataSource.laneAgingIntervalInMillis = 50;
+		Thread.sleep(200);
+		Thread secondHigh = startWaiter(ConnectionPriority.HIGH, servedOrder);
+		Thread.sleep(50);
+		connectionPoolImpl.releaseConnection(servedOrderConnections.get(0));
+		low.join(5000);
+		assertEquals(ConnectionPriority.LOW, servedOrder.get(1));
+		secondHigh.interrupt();
+	}
+	
+	/* Starts a thread that waits for a connection and records the order in which the waiters were served. */
+	private Thread startWaiter(final ConnectionPriority priority, final List<ConnectionPriority> servedOrder) {
+		Thread waiter = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Connection connection = connectionPoolImpl.getConnection(priority, 5, TimeUnit.SECONDS);
+					servedOrder.add(priority);
+					servedOrderConnections.add(connection);
+				} catch (Exception e) {
+					//Not served.
+				}
+			}
+		});
+		waiter.start();
+		return waiter;
+	}
+}
@@ -0,0 +1,132 @@
+package com.opower.connectionpool;
+
+import java.sql.Connection;
+
+import org.junit.Test;
+
+/*
+ * Ensures cacheable queries are served from the pool's result cache without borrowing a connection while fresh,
+ * and that the cache honours its size limit, time to live and invalidation.
+ * 
+ * @author VinayG
+ */
+public class TestResultCache extends AbstractStubOConnectionPoolTest {
+
+	private static final String QUERY = "select name from country where code = ?";
+	
+	@Override
+	protected void configureDataSource(DataSource ds) {
+		ds.poolSize = 1;
+		ds.resultCacheMaxBytes = 1024 * 1024;
+		ds.resultCacheTimeToLiveInSeconds = 60;
+	}
+	
+	/* Ensures a hit needs no connection, different parameters miss, and the hit rate is reported. */
+	@Test
+	public void testHitServedWithoutConnection() throws Exception {
+		int executedQueries = StubDriver.executedQueries.get();
+		CachedResult first = connectionPoolImpl.queryCached(QUERY, "US");
+		assertEquals(1, first.getRowCount());
+		assertEquals(QUERY, first.getObject(1, "sql"));
+		assertEquals("[US]", first.getObject(1, 2));
+		assertEquals(1, connectionPoolImpl.getNumberOfAvailableConnections());
+		
+		Connection onlyConnection = connectionPoolImpl.getConnection();
+		assertSame(first, connectionPoolImpl.queryCached(QUERY, "US"));
+		assertSame(first, ((OConnection) onlyConnection).queryCached(QUERY, "US"));
+		CachedResult other = ((OConnection) onlyConnection).queryCached(QUERY, "CA");
+		assertEquals("[CA]", other.getObject(1, "parameters"));
+		assertEquals(2, StubDriver.executedQueries.get() - executedQueries);
+		
+		ResultCacheStatistics statistics = connectionPoolImpl.getResultCacheStatistics();
+		assertEquals(2, statistics.getEntryCount());
+		assertEquals(2, statistics.getHitCount());
+		assertEquals(2, statistics.getMissCount());
+		assertEquals(0.5, statistics.getHitRate());
+		assertTrue(statistics.getEstimatedBytes() > 0);
+	}
+	
+	/* Ensures a connection inside a transaction neither reads from nor fills the cache, so its uncommitted data is
+	 * never served to other borrowers. */
+	@Test
+	public void testTransactionBypassesCache() throws Exception {
+		int executedQueries = StubDriver.executedQueries.get();
+		CachedResult committed = connectionPoolImpl.queryCached(QUERY, "US");
+		
+		Connection connection = connectionPoolImpl.getConnection();
+		connection.setAutoCommit(false);
+		CachedResult inTransaction = ((OConnection) connection).queryCached(QUERY, "US");
+		assertNotSame(committed, inTransaction);
+		((OConnection) connection).queryCached(QUERY, "CA");
+		connection.rollback();
+		connection.setAutoCommit(true);
+		connectionPoolImpl.releaseConnection(connection);
+		assertEquals(3, StubDriver.executedQueries.get() - executedQueries);
+		
+		assertEquals(1, connectionPoolImpl.getResultCacheStatistics().getEntryCount());
+		assertSame(committed, connectionPoolImpl.queryCached(QUERY, "US"));
+	}
+	
+	/* Ensures a miss while every connection is borrowed waits for one rather than failing. */
+	@Test
+	public void testMissWaitsForConnection() throws Exception {
+		final Connection onlyConnection = connectionPoolImpl.getConnection();
+		Thread releaser = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(200);
+					connectionPoolImpl.releaseConnection(onlyConnection);
+				} catch (Exception e) {
+					//The query below fails if the connection is not released.
+				}
+			}
+		});
+		releaser.start();
+		assertEquals(1, connectionPoolImpl.queryCached(QUERY, "US").getRowCount());
+		releaser.join();
+	}
+	
+	/* Ensures invalidation and expiry send the next query to the database. */
+	@Test
+	public void testInvalidationAndExpiry() throws Exception {
+		int executedQueries = StubDriver.executedQueries.get();
+		connectionPoolImpl.queryCached(QUERY, "US");
+		connectionPoolImpl.invalidateResultCache();
+		assertEquals(0, connectionPoolImpl.getResultCacheStatistics().getEntryCount());
+		connectionPoolImpl.queryCached(QUERY, "US");
+		assertEquals(2, StubDriver.executedQueries.get() - executedQueries);
+		
+		DataSource.getInstance().resultCacheTimeToLiveInSeconds = 0;
+		connectionPoolImpl.invalidateResultCache();
+		connectionPoolImpl.queryCached(QUERY, "US");
+		connectionPoolImpl.queryCached(QUERY, "US");
+		assertEquals(4, StubDriver.executedQueries.get() - executedQueries);
+	}
+	
+	/* Ensures the least recently used results are evicted to stay within the size limit. */
+	@Test
+	public void testSizeBoundedEviction() throws Exception {
+		CachedResult first = connectionPoolImpl.queryCached(QUERY, "US");
+		DataSource.getInstance().resultCacheMaxBytes = first.getEstimatedBytes() * 2;
+		connectionPoolImpl.queryCached(QUERY, "CA");
+		connectionPoolImpl.queryCached(QUERY, "US");
+		connectionPoolImpl.queryCached(QUERY, "MX");
+		
+		ResultCacheStatistics statistics = connectionPoolImpl.getResultCacheStatistics();
+		assertEquals(2, statistics.getEntryCount());
+		assertEquals(1, statistics.getEvictionCount());
+		assertTrue(statistics.getEstimatedBytes() <= first.getEstimatedBytes() * 2);
+		assertSame(first, connectionPoolImpl.queryCached(QUERY, "US"));
+	}
+	
+	/* Ensures nothing is cached unless a size limit is configured. */
+	@Test
+	public void testDisabledByDefault() throws Exception {
+		DataSource.getInstance().resultCacheMaxBytes = 0;
+		int executedQueries = StubDriver.executedQueries.get();
+		connectionPoolImpl.queryCached(QUERY, "US");
+		connectionPoolImpl.queryCached(QUERY, "US");
+		assertEquals(2, StubDriver.executedQueries.get() - executedQueries);
+		assertEquals(0, connectionPoolImpl.getResultCacheStatistics().getEntryCount());
+	}
+}
@@ -0,0 +1,112 @@
+package com.opower.connectionpool;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/*
+ * Ensures the statements a borrower leaves open are closed when the connection is released, except warm statements
+ * which are given back to the connection instead.
+ * 
+ * @author VinayG
+ */
+public class TestStatementCleanup extends AbstractStubOConnectionPoolTest {
+
+	@Override
+	protected void configureDataSource(DataSource ds) {
+		ds.poolSize = 1;
+		ds.warmStatements = new String[]{"select 1"};
+	}
+	
+	private static StubDriver.StubStatementHandler stubOf(Statement statement) {
+		return StubDriver.handlerOf(statement);
+	}
+	
+	/* Ensures only the statements left open are closed, and counted, on release. */
+	@Test
+	public void testLeftOpenStatementsClosedOnRelease() throws Exception {
+		Connection connection = connectionPoolImpl.getConnection();
+		Statement closedByBorrower = connection.createStatement();
+		closedByBorrower.close();
+		Statement leftOpen = connection.createStatement();
+		leftOpen.executeQuery("select 2");
+		PreparedStatement preparedLeftOpen = connection.prepareStatement("select 3");
+		
+		connectionPoolImpl.releaseConnection(connection);
+		assertTrue(stubOf(leftOpen).closed);
+		assertTrue(stubOf(preparedLeftOpen).closed);
+		assertEquals(2, connectionPoolImpl.getLeakedStatements());
+		
+		connection = connectionPoolImpl.getConnection();
+		connection.createStatement().close();
+		connectionPoolImpl.releaseConnection(connection);
+		assertEquals(2, connectionPoolImpl.getLeakedStatements());
+	}
+	
+	/* Ensures a warm statement left open is given back rather than closed. */
+	@Test
+	public void testWarmStatementsGivenBack() throws Exception {
+		Connection connection = connectionPoolImpl.getConnection();
+		connection.prepareStatement("select 1").executeQuery();
+		connectionPoolImpl.releaseConnection(connection);
+		assertEquals(0, connectionPoolImpl.getLeakedStatements());
+		
+		connection = connectionPoolImpl.getConnection();
+		PreparedStatement warmStatement = connection.prepareStatement("select 1");
+		warmStatement.executeQuery();
+		warmStatement.close();
+		connectionPoolImpl.releaseConnection(connection);
+	}
+	
+	/* Ensures a connection whose release is still cleaning up is not reclaimed past its deadline and lent out, which
+	 * would let the release close the next borrower's statements. */
+	@Test
+	public void testReleaseNotReclaimedMidway() throws Exception {
+		recyclePool();
+		DataSource.getInstance().url = StubDriver.URL_PREFIX + "releasing;queryLatency=fixed:800";
+		connectionPoolImpl = new OConnectionPoolImpl();
+		OConnection connection = (OConnection) connectionPoolImpl.getConnectionUntil(ConnectionPriority.NORMAL,
+				System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300));
+		connection.setAutoCommit(false);
+		connection.enableBatchCoalescing(10, 1, TimeUnit.MINUTES);
+		connection.createStatement();
+		PreparedStatement insert = connection.prepareStatement("insert into reading values (?)");
+		insert.setInt(1, 1);
+		insert.executeUpdate();
+		
+		final AtomicReference<Statement> nextStatement = new AtomicReference<Statement>();
+		Thread nextBorrower = new Thread(new Runnable() {
+			public void run() {
+				try {
+					nextStatement.set(connectionPoolImpl.getConnection(ConnectionPriority.NORMAL, 5, TimeUnit.SECONDS)
+							.createStatement());
+				} catch (Exception e) {
+					//Checked below.
+				}
+			}
+		});
+		nextBorrower.start();
+		//The coalesced insert runs on release and takes past the deadline.
+		connectionPoolImpl.releaseConnection(connection);
+		nextBorrower.join(5000);
+		assertNotNull(nextStatement.get());
+		assertFalse(nextStatement.get().isClosed());
+	}
+	
+	/* Ensures a borrow that creates and closes many statements keeps working while the closed ones are pruned. */
+	@Test
+	public void testManyStatementsInOneBorrow() throws Exception {
+		Connection connection = connectionPoolImpl.getConnection();
+		Statement leftOpen = connection.createStatement();
+		for(int i = 0; i < 1000; i++){
+			connection.createStatement().close();
+		}
+		connectionPoolImpl.releaseConnection(connection);
+		assertTrue(stubOf(leftOpen).closed);
+		assertEquals(1, connectionPoolImpl.getLeakedStatements());
+	}
+}
@@ -0,0 +1,94 @@
+package com.opower.connectionpool;
+
+import java.sql.Connection;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/*
+ * Ensures streaming mode sets up statements for cursor based fetching inside the borrower's own transaction and never
+ * touches the autoCommit state itself.
+ * 
+ * @author VinayG
+ */
+public class TestStreamingMode extends AbstractStubOConnectionPoolTest {
+
+	@Override
+	protected void configureDataSource(DataSource ds) {
+		ds.poolSize = 1;
+	}
+	
+	private static StubDriver.StubConnectionHandler physicalOf(Connection connection) {
+		return StubDriver.handlerOf(((OConnection) connection)._connection);
+	}
+	
+	/* Ensures a borrower enabling streaming in its transaction gets fetch sized statements for that borrow only, and
+	 * the transaction is left to the borrower. */
+	@Test
+	public void testPerBorrowStreaming() throws Exception {
+		OConnection connection = (OConnection) connectionPoolImpl.getConnection();
+		StubDriver.StubConnectionHandler physical = physicalOf(connection);
+		connection.setAutoCommit(false);
+		connection.enableStreaming(500);
+		assertEquals(500, connection.createStatement().getFetchSize());
+		assertEquals(500, connection.prepareStatement("select * from reading").getFetchSize());
+		
+		connectionPoolImpl.releaseConnection(connection);
+		assertFalse(physical.autoCommit);
+		assertEquals(0, physical.commits);
+		
+		connection = (OConnection) connectionPoolImpl.getConnection();
+		assertEquals(0, connection.createStatement().getFetchSize());
+	}
+	
+	/* Ensures streaming is refused on an autoCommit borrow rather than opening a transaction behind its back. */
+	@Test
+	public void testStreamingNeedsTransaction() throws Exception {
+		OConnection connection = (OConnection) connectionPoolImpl.getConnection();
+		StubDriver.StubConnectionHandler physical = physicalOf(connection);
+		try {
+			connection.enableStreaming(100);
+			fail("Should have thrown a IllegalStateException");
+		} catch (IllegalStateException e) {
+			//part of legit flow.
+		}
+		assertTrue(physical.autoCommit);
+		assertTrue(connection.getAutoCommit());
+		assertEquals(0, connection.createStatement().getFetchSize());
+	}
+	
+	/* Ensures the pool level fetch size applies to every borrow, including after a connection is closed, without
+	 * switching autoCommit off. */
+	@Test
+	public void testPoolLevelStreaming() throws Exception {
+		DataSource.getInstance().streamingFetchSize = 1000;
+		Connection connection = connectionPoolImpl.getConnection();
+		assertEquals(1000, connection.createStatement().getFetchSize());
+		assertTrue(physicalOf(connection).autoCommit);
+		assertTrue(connection.getAutoCommit());
+		connection.close();
+		
+		//The replacement for the closed connection is opened in the background.
+		connection = connectionPoolImpl.getConnection(ConnectionPriority.NORMAL, 5, TimeUnit.SECONDS);
+		assertEquals(1000, connection.createStatement().getFetchSize());
+		connectionPoolImpl.releaseConnection(connection);
+		assertEquals(0, physicalOf(connectionPoolImpl.getConnection()).commits);
+	}
+	
+	/* Ensures the writes of a borrower that never asked for a transaction stay autoCommitted under the pool level fetch
+	 * size, and a transaction the borrower opens streams. */
+	@Test
+	public void testPoolLevelStreamingKeepsAutoCommit() throws Exception {
+		DataSource.getInstance().streamingFetchSize = 1000;
+		Connection connection = connectionPoolImpl.getConnection();
+		StubDriver.StubConnectionHandler physical = physicalOf(connection);
+		connection.createStatement().executeUpdate("update reading set value = 1");
+		assertTrue(physical.autoCommit);
+		assertEquals(0, physical.commits);
+		
+		connection.setAutoCommit(false);
+		assertEquals(1000, connection.prepareStatement("select * from reading").getFetchSize());
+		connection.commit();
+		assertEquals(1, physical.commits);
+	}
+}
@@ -0,0 +1,124 @@
+package com.opower.connectionpool;
+
+import java.sql.Connection;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/*
+ * Ensures a tenant cannot hold more than its share of the pool, only a bounded number of its borrowers may wait,
+ * and tenants that have gone quiet are forgotten.
+ * 
+ * @author VinayG
+ */
+public class TestTenantBulkheads extends AbstractStubOConnectionPoolTest {
+
+	@Override
+	protected void configureDataSource(DataSource ds) {
+		ds.poolSize = 4;
+		ds.tenantMaxConnections = 2;
+		ds.tenantMaxWaiters = 1;
+		ds.tenantEvictAfterIdleSeconds = 0;
+	}
+	
+	/* Starts a borrower for the tenant that waits up to the given time and releases whatever it gets right away. */
+	private Thread startWaiter(final String tenant, final long timeoutInMillis) {
+		Thread waiter = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Connection connection = connectionPoolImpl.getConnection(tenant, ConnectionPriority.NORMAL,
+							timeoutInMillis, TimeUnit.MILLISECONDS);
+					connectionPoolImpl.releaseConnection(connection);
+				} catch (Exception e) {
+					//The test asserts on the outcome through the pool's counters.
+				}
+			}
+		});
+		waiter.start();
+		return waiter;
+	}
+	
+	/* Waits until the borrower is blocked waiting for the tenant. */
+	private void awaitWaiting(Thread waiter) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while(waiter.getState() != Thread.State.TIMED_WAITING && System.currentTimeMillis() < deadline){
+			Thread.sleep(10);
+		}
+		assertEquals(Thread.State.TIMED_WAITING, waiter.getState());
+	}
+	
+	/* Ensures a tenant at its limit is turned away while other tenants still get connections. */
+	@Test
+	public void testTenantLimit() throws Exception {
+		connectionPoolImpl.getConnection("alpha");
+		connectionPoolImpl.getConnection("alpha");
+		try {
+			connectionPoolImpl.getConnection("alpha");
+			fail("Should have thrown a IllegalStateException");
+		} catch (IllegalStateException e) {
+			//part of legit flow.
+		}
+		assertEquals(2, connectionPoolImpl.getTenantBorrowedConnections("alpha"));
+		assertEquals(1, connectionPoolImpl.getTenantRejections("alpha"));
+		
+		Connection other = connectionPoolImpl.getConnection("beta");
+		assertFalse(other.isClosed());
+		assertEquals(1, connectionPoolImpl.getNumberOfAvailableConnections());
+	}
+	
+	/* Ensures only maxWaiters of the tenant's borrowers may wait and a release hands the permit to the waiting one. */
+	@Test
+	public void testBoundedWaiters() throws Exception {
+		connectionPoolImpl.getConnection("alpha");
+		Connection second = connectionPoolImpl.getConnection("alpha");
+		Thread waiter = startWaiter("alpha", 5000);
+		awaitWaiting(waiter);
+		
+		try {
+			connectionPoolImpl.getConnection("alpha", ConnectionPriority.NORMAL, 5, TimeUnit.SECONDS);
+			fail("Should have thrown a IllegalStateException");
+		} catch (IllegalStateException e) {
+			//part of legit flow.
+		}
+		
+		connectionPoolImpl.releaseConnection(second);
+		waiter.join(5000);
+		assertFalse(waiter.isAlive());
+		assertEquals(1, connectionPoolImpl.getTenantBorrowedConnections("alpha"));
+		assertEquals(1, connectionPoolImpl.getTenantRejections("alpha"));
+		assertEquals(3, connectionPoolImpl.getNumberOfAvailableConnections());
+	}
+	
+	/* Ensures a failed pool borrow gives the tenant's permit back. */
+	@Test
+	public void testPermitReturnedWhenPoolEmpty() throws Exception {
+		for(int i = 0; i < 4; i++){
+			connectionPoolImpl.getConnection();
+		}
+		try {
+			connectionPoolImpl.getConnection("alpha");
+			fail("Should have thrown a IllegalStateException");
+		} catch (IllegalStateException e) {
+			//part of legit flow.
+		}
+		assertEquals(0, connectionPoolImpl.getTenantBorrowedConnections("alpha"));
+	}
+	
+	/* Ensures a tenant with nothing borrowed is evicted once it has been quiet long enough, but a busy one is kept. */
+	@Test
+	public void testQuietTenantEvicted() throws Exception {
+		connectionPoolImpl.releaseConnection(connectionPoolImpl.getConnection("alpha"));
+		connectionPoolImpl.getConnection("beta");
+		assertEquals(2, connectionPoolImpl.getNumberOfTrackedTenants());
+		
+		long deadline = System.currentTimeMillis() + 5000;
+		while(connectionPoolImpl.getNumberOfTrackedTenants() > 1 && System.currentTimeMillis() < deadline){
+			Thread.sleep(50);
+		}
+		assertEquals(1, connectionPoolImpl.getNumberOfTrackedTenants());
+		assertEquals(1, connectionPoolImpl.getTenantBorrowedConnections("beta"));
+		
+		connectionPoolImpl.releaseConnection(connectionPoolImpl.getConnection("alpha"));
+		assertEquals(0, connectionPoolImpl.getTenantBorrowedConnections("alpha"));
+	}
+}